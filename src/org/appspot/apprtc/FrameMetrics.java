@@ -0,0 +1,137 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for the frames of one stream rendered by a
+ * VideoStreamsView, from queueFrame() to the draw that precedes the buffer
+ * swap.  Recording never allocates; every getter may be called from any
+ * thread at any time.
+ */
+public class FrameMetrics {
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong copied = new AtomicLong();
+  private final AtomicLong superseded = new AtomicLong();
+  private final AtomicLong stale = new AtomicLong();
+  private final AtomicLong uploaded = new AtomicLong();
+  private final AtomicLong rendered = new AtomicLong();
+  private final LatencyHistogram queueToUpload = new LatencyHistogram();
+  private final LatencyHistogram uploadToRender = new LatencyHistogram();
+
+  /** Frames passed to queueFrame() for this stream. */
+  public long getReceived() {
+    return received.get();
+  }
+
+  /** Frames copied for handoff to the render thread. */
+  public long getCopied() {
+    return copied.get();
+  }
+
+  /**
+   * Frames dropped because a newer frame took their place before upload (or,
+   * when skipping while pending, because an older one was still waiting).
+   */
+  public long getSuperseded() {
+    return superseded.get();
+  }
+
+  /** Frames dropped because they waited too long for upload. */
+  public long getStale() {
+    return stale.get();
+  }
+
+  /** Frames uploaded to textures. */
+  public long getUploaded() {
+    return uploaded.get();
+  }
+
+  /** Uploaded frames that were drawn at least once. */
+  public long getRendered() {
+    return rendered.get();
+  }
+
+  /** Latency from queueFrame() returning to the frame's upload. */
+  public LatencyHistogram getQueueToUploadLatency() {
+    return queueToUpload;
+  }
+
+  /** Latency from a frame's upload to the end of its first draw. */
+  public LatencyHistogram getUploadToRenderLatency() {
+    return uploadToRender;
+  }
+
+  /** Zero every counter and histogram. */
+  public void reset() {
+    received.set(0);
+    copied.set(0);
+    superseded.set(0);
+    stale.set(0);
+    uploaded.set(0);
+    rendered.set(0);
+    queueToUpload.reset();
+    uploadToRender.reset();
+  }
+
+  @Override
+  public String toString() {
+    return "received=" + getReceived() + " copied=" + getCopied() +
+        " superseded=" + getSuperseded() + " stale=" + getStale() +
+        " uploaded=" + getUploaded() + " rendered=" + getRendered() +
+        "; queue->upload " + queueToUpload +
+        "; upload->render " + uploadToRender;
+  }
+
+  void onReceived() {
+    received.incrementAndGet();
+  }
+
+  void onCopied() {
+    copied.incrementAndGet();
+  }
+
+  void onSuperseded() {
+    superseded.incrementAndGet();
+  }
+
+  void onStale() {
+    stale.incrementAndGet();
+  }
+
+  void onUploaded(long queueToUploadNs) {
+    uploaded.incrementAndGet();
+    queueToUpload.record(queueToUploadNs);
+  }
+
+  void onRendered(long uploadToRenderNs) {
+    rendered.incrementAndGet();
+    uploadToRender.record(uploadToRenderNs);
+  }
+}
@@ -29,70 +29,267 @@ package org.appspot.apprtc;
 
 import org.webrtc.VideoRenderer.I420Frame;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This class acts as an allocation pool meant to minimize GC churn caused by
  * frame allocation & disposal.  The public API comprises of just two methods:
- * copyFrame(), which allocates as necessary and copies, and
- * returnFrame(), which returns frame ownership to the pool for use by a later
- * call to copyFrame().
+ * takeFrame(), which returns a frame to copy into, allocating as necessary,
+ * and returnFrame(), which returns frame ownership to the pool for use by a
+ * later call to takeFrame().
  *
- * This class is thread-safe; calls to copyFrame() and returnFrame() are allowed
- * to happen on any thread.
+ * This class is thread-safe and lock-free; calls to takeFrame() and
+ * returnFrame() are allowed to happen on any thread, and allocate only when
+ * the pool has no frame of the requested size.  The pool is bounded: it keeps
+ * a few frames of each size for every stream it serves, and a few sizes more
+ * than there are streams (see setStreamCount()), dropping the least recently
+ * used size (and any size idle for IDLE_EVICTION_NS) so that old resolutions
+ * don't pin their buffers.
  */
 class FramePool {
-  // Maps each summary code (see summarizeFrameDimensions()) to a list of frames
-  // of that description.
-  private final HashMap<Long, LinkedList<I420Frame>> availableFrames =
-      new HashMap<Long, LinkedList<I420Frame>>();
   // Every dimension (e.g. width, height, stride) of a frame must be less than
   // this value.
   private static final long MAX_DIMENSION = 4096;
+  // Each stream holds up to this many frames at once (one queued for upload,
+  // one being copied into), all of which may come back to the same class.
+  private static final int FRAMES_PER_STREAM = 2;
+  // Bounds for a pool serving a single stream, and floors for more.
+  private static final int MIN_FRAMES_PER_CLASS = 4;
+  private static final int MIN_SIZE_CLASSES = 4;
+  // Size classes unused for this long are dropped even if there's room.
+  private static final long IDLE_EVICTION_NS = 5000000000L;
+
+  // Free frames of one size (see summarizeFrameDimensions()).  A fixed array
+  // of slots claimed by CAS, so no per-operation allocation and no lock.
+  private static class SizeClass {
+    final long desc;
+    final AtomicReferenceArray<I420Frame> frames;
+    volatile long lastUsedNs;
+
+    SizeClass(long desc, long nowNs, int capacity) {
+      this.desc = desc;
+      this.lastUsedNs = nowNs;
+      this.frames = new AtomicReferenceArray<I420Frame>(capacity);
+    }
+
+    I420Frame poll() {
+      for (int i = 0; i < frames.length(); ++i) {
+        I420Frame frame = frames.get(i);
+        if (frame != null && frames.compareAndSet(i, frame, null)) {
+          return frame;
+        }
+      }
+      return null;
+    }
+
+    // Keep |frame| unless |limit| frames are kept already.
+    boolean offer(I420Frame frame, int limit) {
+      for (int i = 0; i < Math.min(limit, frames.length()); ++i) {
+        if (frames.get(i) == null && frames.compareAndSet(i, null, frame)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  // Replaced, never resized, by setStreamCount().
+  private volatile AtomicReferenceArray<SizeClass> sizeClasses =
+      new AtomicReferenceArray<SizeClass>(MIN_SIZE_CLASSES);
+  private volatile int framesPerClass = MIN_FRAMES_PER_CLASS;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
 
   public I420Frame takeFrame(I420Frame source) {
-    long desc = summarizeFrameDimensions(source);
-    I420Frame dst = null;
-    synchronized (availableFrames) {
-      LinkedList<I420Frame> frames = availableFrames.get(desc);
-      if (frames == null) {
-        frames = new LinkedList<I420Frame>();
-        availableFrames.put(desc, frames);
+    SizeClass sizeClass =
+        getSizeClass(summarizeFrameDimensions(source), System.nanoTime());
+    I420Frame dst = sizeClass.poll();
+    if (dst != null) {
+      hits.incrementAndGet();
+      return dst;
+    }
+    misses.incrementAndGet();
+    return new I420Frame(source.width, source.height, source.yuvStrides, null);
+  }
+
+  public void returnFrame(I420Frame frame) {
+    // A frame whose class has gone (e.g. taken before a resolution change)
+    // isn't worth evicting a live class for; let the GC have it.
+    SizeClass sizeClass =
+        findSizeClass(summarizeFrameDimensions(frame), System.nanoTime());
+    if (sizeClass == null || !sizeClass.offer(frame, framesPerClass)) {
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Size the pool for |streams| streams being rendered at once: enough frames
+   * for all of them at one resolution, and enough sizes for each at its own
+   * (plus one, for a resolution change).  Growing keeps everything pooled;
+   * shrinking drops the least recently used sizes.  Frames returned while
+   * this runs may be left for the GC.
+   */
+  public synchronized void setStreamCount(int streams) {
+    framesPerClass =
+        Math.max(MIN_FRAMES_PER_CLASS, streams * FRAMES_PER_STREAM);
+    int classes = Math.max(MIN_SIZE_CLASSES, streams + 1);
+    AtomicReferenceArray<SizeClass> old = sizeClasses;
+    if (classes == old.length()) {
+      return;
+    }
+    // Move classes over most recently used first, evicting what doesn't fit.
+    AtomicReferenceArray<SizeClass> resized =
+        new AtomicReferenceArray<SizeClass>(classes);
+    int count = 0;
+    while (true) {
+      int newest = -1;
+      for (int i = 0; i < old.length(); ++i) {
+        SizeClass sizeClass = old.get(i);
+        if (sizeClass != null && (newest < 0
+            || sizeClass.lastUsedNs > old.get(newest).lastUsedNs)) {
+          newest = i;
+        }
       }
-      if (!frames.isEmpty()) {
-        dst = frames.pop();
+      if (newest < 0) {
+        break;
+      }
+      SizeClass sizeClass = old.getAndSet(newest, null);
+      if (sizeClass == null) {
+        continue;
+      }
+      if (count < classes) {
+        resized.set(count++, sizeClass);
       } else {
-        dst = new I420Frame(
-            source.width, source.height, source.yuvStrides, null);
+        evict(sizeClass);
       }
     }
-    return dst;
+    sizeClasses = resized;
   }
 
-  public void returnFrame(I420Frame frame) {
-    long desc = summarizeFrameDimensions(frame);
-    synchronized (availableFrames) {
-      LinkedList<I420Frame> frames = availableFrames.get(desc);
-      if (frames == null) {
-        throw new IllegalArgumentException("Unexpected frame dimensions");
+  /** Number of takeFrame() calls served from the pool. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** Number of takeFrame() calls that had to allocate a new frame. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Number of frames the pool has let go of, because their size class was
+   * full, was evicted or was gone.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  // Return the size class for |desc|, or null if there is none.
+  private SizeClass findSizeClass(long desc, long nowNs) {
+    AtomicReferenceArray<SizeClass> sizeClasses = this.sizeClasses;
+    for (int i = 0; i < sizeClasses.length(); ++i) {
+      SizeClass sizeClass = sizeClasses.get(i);
+      if (sizeClass != null && sizeClass.desc == desc) {
+        sizeClass.lastUsedNs = nowNs;
+        return sizeClass;
       }
-      frames.add(frame);
     }
+    return null;
   }
 
-  /** Validate that |frame| can be managed by the pool. */
+  // Return the size class for |desc|, creating it if necessary.  Along the
+  // way, evicts classes idle for longer than IDLE_EVICTION_NS, and if there's
+  // no room for a new class, evicts the least recently used one.  Two threads
+  // racing to create the same class may both succeed; the loser's class just
+  // goes idle and gets evicted.  A class too small for the current
+  // |framesPerClass| is replaced by a bigger one, taking its frames along.
+  private SizeClass getSizeClass(long desc, long nowNs) {
+    search: while (true) {
+      AtomicReferenceArray<SizeClass> sizeClasses = this.sizeClasses;
+      int capacity = framesPerClass;
+      int victim = -1;
+      long victimLastUsedNs = Long.MAX_VALUE;
+      for (int i = 0; i < sizeClasses.length(); ++i) {
+        SizeClass sizeClass = sizeClasses.get(i);
+        if (sizeClass != null && sizeClass.desc == desc) {
+          sizeClass.lastUsedNs = nowNs;
+          if (sizeClass.frames.length() >= capacity) {
+            return sizeClass;
+          }
+          SizeClass bigger = new SizeClass(desc, nowNs, capacity);
+          if (sizeClasses.compareAndSet(i, sizeClass, bigger)) {
+            I420Frame frame;
+            while ((frame = sizeClass.poll()) != null) {
+              bigger.offer(frame, capacity);
+            }
+            return bigger;
+          }
+          // Lost a race for the slot; look again.
+          continue search;
+        }
+        if (sizeClass != null
+            && nowNs - sizeClass.lastUsedNs > IDLE_EVICTION_NS
+            && sizeClasses.compareAndSet(i, sizeClass, null)) {
+          evict(sizeClass);
+          sizeClass = null;
+        }
+        if (sizeClass == null) {
+          if (victimLastUsedNs != Long.MIN_VALUE) {
+            victim = i;
+            victimLastUsedNs = Long.MIN_VALUE;
+          }
+        } else if (sizeClass.lastUsedNs < victimLastUsedNs) {
+          victim = i;
+          victimLastUsedNs = sizeClass.lastUsedNs;
+        }
+      }
+      SizeClass old = sizeClasses.get(victim);
+      SizeClass sizeClass = new SizeClass(desc, nowNs, capacity);
+      if (sizeClasses.compareAndSet(victim, old, sizeClass)) {
+        if (old != null) {
+          evict(old);
+        }
+        return sizeClass;
+      }
+      // Lost a race for the slot; look again.
+    }
+  }
+
+  // Drop the frames of a size class that's no longer in |sizeClasses|.
+  private void evict(SizeClass sizeClass) {
+    while (sizeClass.poll() != null) {
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Validate that |frame| can be managed by the pool.  Strides may be padded
+   * beyond the width of their plane (VideoStreamsView crops the padding off),
+   * but never short of it.
+   */
   public static boolean validateDimensions(I420Frame frame) {
     return frame.width < MAX_DIMENSION && frame.height < MAX_DIMENSION &&
         frame.yuvStrides[0] < MAX_DIMENSION &&
         frame.yuvStrides[1] < MAX_DIMENSION &&
-        frame.yuvStrides[2] < MAX_DIMENSION;
+        frame.yuvStrides[2] < MAX_DIMENSION &&
+        frame.yuvStrides[0] >= frame.width &&
+        frame.yuvStrides[1] >= frame.width / 2 &&
+        frame.yuvStrides[2] >= frame.width / 2;
+  }
+
+  /** Whether |a| and |b| can store each others' contents. */
+  public static boolean sameDimensions(I420Frame a, I420Frame b) {
+    return summarizeFrameDimensions(a) == summarizeFrameDimensions(b);
   }
 
   // Return a code summarizing the dimensions of |frame|.  Two frames that
   // return the same summary are guaranteed to be able to store each others'
   // contents.  Used like Object.hashCode(), but we need all the bits of a long
-  // to do a good job, and hashCode() returns int, so we do this.
+  // to do a good job, and hashCode() returns int, so we do this.  Strides are
+  // part of the summary, so padded and unpadded frames of the same size land
+  // in different size classes, as copyFrom() requires.
   private static long summarizeFrameDimensions(I420Frame frame) {
     long ret = frame.width;
     ret = ret * MAX_DIMENSION + frame.height;
@@ -0,0 +1,128 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import android.opengl.GLES20;
+
+import java.util.Arrays;
+
+/**
+ * Shadows the little GL state that VideoStreamsView and YuvTextures change
+ * from frame to frame -- the active texture unit, the texture bound to each
+ * unit, and the crop uniform -- so that calls which wouldn't change anything
+ * never reach the driver.  Must only be used on the GL thread, and reset()
+ * whenever the GL context is (re)created, as the real state starts over then.
+ *
+ * It can be switched off, passing every call through while still tracking the
+ * state, to measure what it saves.
+ */
+class GlStateCache {
+  private static final int TEXTURE_UNITS = 3;
+
+  private int activeUnit;
+  private final int[] boundTextures = new int[TEXTURE_UNITS];
+  private final float[] crop = new float[3];
+  private int redundantCallsSkipped = 0;
+  private boolean enabled = true;
+
+  public GlStateCache() {
+    reset();
+  }
+
+  /** Forget everything, so the next call of each kind goes through. */
+  public void reset() {
+    activeUnit = -1;
+    Arrays.fill(boundTextures, -1);
+    Arrays.fill(crop, Float.NaN);
+  }
+
+  /**
+   * Skip redundant calls if |enabled| (the default), else make every call,
+   * e.g. to compare the two.
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /** Bind |texture| as the 2D texture of texture unit |unit|. */
+  public void bindTexture(int unit, int texture) {
+    if (enabled && boundTextures[unit] == texture) {
+      ++redundantCallsSkipped;
+      return;
+    }
+    activeUnit(unit);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+    boundTextures[unit] = texture;
+  }
+
+  /**
+   * Make |unit| the active texture unit, e.g. before changing parameters of
+   * the texture bound to it.
+   */
+  public void activeUnit(int unit) {
+    if (enabled && activeUnit == unit) {
+      ++redundantCallsSkipped;
+      return;
+    }
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+    activeUnit = unit;
+  }
+
+  /**
+   * Note that |textures| were deleted, which unbinds them; their names may
+   * be handed out again, and binding the new texture mustn't be skipped.
+   */
+  public void texturesDeleted(int[] textures) {
+    for (int texture : textures) {
+      for (int unit = 0; unit < TEXTURE_UNITS; ++unit) {
+        if (boundTextures[unit] == texture) {
+          boundTextures[unit] = -1;
+        }
+      }
+    }
+  }
+
+  /** Set the vec3 uniform at |location| (always the crop) to (x, y, z). */
+  public void setCrop(int location, float x, float y, float z) {
+    if (enabled && crop[0] == x && crop[1] == y && crop[2] == z) {
+      ++redundantCallsSkipped;
+      return;
+    }
+    GLES20.glUniform3f(location, x, y, z);
+    crop[0] = x;
+    crop[1] = y;
+    crop[2] = z;
+  }
+
+  /** Return the number of calls skipped since the last call, and reset it. */
+  public int takeRedundantCallsSkipped() {
+    int skipped = redundantCallsSkipped;
+    redundantCallsSkipped = 0;
+    return skipped;
+  }
+}
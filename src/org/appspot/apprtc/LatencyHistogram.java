@@ -0,0 +1,131 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size latency histogram that never allocates while recording, so it
+ * can sit in per-frame paths.  Values are kept in microseconds, in buckets
+ * that are linear up to 8us and then split each power of two into 8, so any
+ * value is known to within 12.5% up to ~33s (longer values land in the last
+ * bucket).  Safe to record to and read from any number of threads; reads
+ * racing with records may see a record half-counted.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Largest power of two (in us) with buckets of its own.
+  private static final int MAX_EXPONENT = 24;
+  private static final int BUCKETS =
+      (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong maxNs = new AtomicLong();
+
+  /** Record one latency of |ns| nanoseconds; negative values count as 0. */
+  public void record(long ns) {
+    ns = Math.max(ns, 0);
+    counts.incrementAndGet(bucketOf(ns / 1000));
+    count.incrementAndGet();
+    long max;
+    while (ns > (max = maxNs.get()) && !maxNs.compareAndSet(max, ns)) {
+    }
+  }
+
+  /** Return the number of latencies recorded. */
+  public long getCount() {
+    return count.get();
+  }
+
+  /** Return the largest latency recorded, exactly, in nanoseconds. */
+  public long getMaxNs() {
+    return maxNs.get();
+  }
+
+  /**
+   * Return the latency, in nanoseconds, that |percentile| (0-100) percent of
+   * the recorded latencies are at most, rounded up to its bucket's upper
+   * bound; or 0 if nothing was recorded.
+   */
+  public long getPercentileNs(double percentile) {
+    long total = count.get();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(bucketLowerBoundUs(i + 1) * 1000, maxNs.get());
+      }
+    }
+    return maxNs.get();
+  }
+
+  /** Forget everything recorded so far. */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; ++i) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    maxNs.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("n=%d p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms",
+        getCount(), getPercentileNs(50) / 1e6, getPercentileNs(90) / 1e6,
+        getPercentileNs(99) / 1e6, getMaxNs() / 1e6);
+  }
+
+  // Return the index of the bucket holding |us| microseconds.
+  private static int bucketOf(long us) {
+    if (us < SUB_BUCKETS) {
+      return (int) us;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(us);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int shift = exponent - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((us >> shift) - SUB_BUCKETS);
+  }
+
+  // Return the smallest value, in microseconds, that falls in bucket |i|.
+  private static long bucketLowerBoundUs(int i) {
+    if (i < SUB_BUCKETS) {
+      return i;
+    }
+    int shift = i / SUB_BUCKETS - 1;
+    return (long) (SUB_BUCKETS + i % SUB_BUCKETS) << shift;
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces render requests into at most one callback per display vsync, no
+ * matter how many streams ask for one in between.  Uses Choreographer on API
+ * 16+, and a main-thread Handler ticking at 60Hz before that.  requestFrame()
+ * may be called from any thread; the callback runs on the main thread.
+ */
+class RenderScheduler {
+  private static final long FALLBACK_FRAME_INTERVAL_MS = 16;
+
+  private final Runnable onFrame;
+  private final AtomicBoolean frameRequested = new AtomicBoolean(false);
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  // Null before API 16.
+  private final VsyncCallback vsyncCallback;
+
+  private final Runnable tick = new Runnable() {
+      public void run() {
+        frameRequested.set(false);
+        onFrame.run();
+      }
+    };
+
+  // Only loaded on API 16+, where Choreographer exists.
+  private class VsyncCallback implements Choreographer.FrameCallback {
+    // Choreographer is per-Looper, so grab the main thread's up front; posting
+    // to it is allowed from any thread.
+    final Choreographer choreographer = Choreographer.getInstance();
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      tick.run();
+    }
+  }
+
+  /** Must be constructed on the main thread. */
+  public RenderScheduler(Runnable onFrame) {
+    this.onFrame = onFrame;
+    vsyncCallback =
+        Build.VERSION.SDK_INT >= 16 ? new VsyncCallback() : null;
+  }
+
+  /** Run the callback at the next vsync, unless it's already due to. */
+  public void requestFrame() {
+    if (!frameRequested.compareAndSet(false, true)) {
+      return;
+    }
+    if (vsyncCallback != null) {
+      vsyncCallback.choreographer.postFrameCallback(vsyncCallback);
+    } else {
+      handler.postDelayed(tick, FALLBACK_FRAME_INTERVAL_MS);
+    }
+  }
+}
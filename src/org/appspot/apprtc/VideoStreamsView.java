@@ -27,11 +27,14 @@
 
 package org.appspot.apprtc;
 
+import android.app.ActivityManager;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.graphics.Point;
-import android.graphics.Rect;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
+import android.os.Build;
+import android.os.Debug;
 import android.util.Log;
 
 import org.webrtc.VideoRenderer.I420Frame;
@@ -39,119 +42,420 @@ import org.webrtc.VideoRenderer.I420Frame;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.EnumMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 /**
- * A GLSurfaceView{,.Renderer} that efficiently renders YUV frames from local &
- * remote VideoTracks using the GPU for CSC.  Clients will want to call the
- * constructor, setSize() and updateFrame() as appropriate, but none of the
- * other public methods of this class are of interest to clients (only to system
- * classes).
+ * A GLSurfaceView{,.Renderer} that efficiently renders YUV frames from any
+ * number of local & remote VideoTracks using the GPU for CSC.  Streams are
+ * identified by a client-chosen id and laid out as tiles of a single surface;
+ * all visible tiles are drawn in one pass with one shader program and one
+ * vertex buffer.  Clients will want to call the constructor, addStream(),
+ * setSize(), queueFrame() and removeStream() as appropriate, and may query
+ * getMetrics() or dumpMetrics(), but none of the other public methods of this
+ * class are of interest to clients (only to system classes).
+ *
+ * Rendering is on demand and paced by the display: however many streams queue
+ * frames in between, pending frames are uploaded together and drawn at most
+ * once per vsync.
  */
 public class VideoStreamsView
     extends GLSurfaceView
     implements GLSurfaceView.Renderer {
 
-  /** Identify which of the two video streams is being addressed. */
-  public static enum Endpoint { LOCAL, REMOTE };
+  /** How the streams' tiles are arranged on the surface. */
+  public static enum Layout {
+    /** Equal tiles, row by row, in the order the streams were added. */
+    GRID,
+    /**
+     * The active stream (see setActiveStream(), by default the most recently
+     * added) fills the surface; the rest are thumbnails along its top.
+     */
+    ACTIVE_SPEAKER
+  };
+
+  /** How queueFrame() hands frames over to the render thread. */
+  public static enum FrameHandoff {
+    /**
+     * Copy every frame.  A frame that arrives while the previous one for its
+     * stream is still waiting to be uploaded is copied over it in place.
+     */
+    COPY_EVERY_FRAME,
+    /**
+     * Copy a frame only once the render thread has taken the previous one for
+     * its stream; frames arriving in between are dropped without ever being
+     * copied.  Saves the copy of every frame that would have been superseded,
+     * at the cost of showing a frame up to one frame interval older whenever
+     * the render thread falls behind.
+     */
+    SKIP_WHILE_PENDING
+  };
 
   private final static String TAG = "VideoStreamsView";
   
-  private static boolean fpsLogging = false;
+  private static volatile boolean fpsLogging = false;
+  private static volatile boolean glStateCacheMeasurementRequested = false;
+
+  private volatile FrameHandoff frameHandoff = FrameHandoff.COPY_EVERY_FRAME;
   
-  private EnumMap<Endpoint, Rect> rects =
-      new EnumMap<Endpoint, Rect>(Endpoint.class);
   private Point screenDimensions;
-  // [0] are local Y,U,V, [1] are remote Y,U,V.
-  private int[][] yuvTextures = { { -1, -1, -1}, {-1, -1, -1 }};
+  // Whether each stream uploads into two alternating sets of textures, so an
+  // upload never waits on the previous frame's draw.  Costs twice the texture
+  // memory, about 1.4 MB more per 720p stream; GLES2 has no way to ask how
+  // much is left, so it's spent on every device but those that declare
+  // themselves low on RAM.
+  private final boolean doubleBufferTextures;
+  // Size and spacing of ACTIVE_SPEAKER thumbnails, in clip coordinates.
+  private static final float THUMBNAIL_SIZE = 0.3f;
+  private static final float THUMBNAIL_MARGIN = 0.1f;
+  private static final float THUMBNAIL_SPACING = 0.05f;
+  // Per vertex: X,Y position then S,T texture coordinate.
+  private static final int FLOATS_PER_VERTEX = 4;
+  private static final int VERTICES_PER_TILE = 4;
+  // Frames that have waited longer than this for upload (i.e. the render
+  // thread stalled) are dropped rather than uploaded; a newer one is due.
+  private static final long STALE_FRAME_NS = 200 * 1000 * 1000;
+  // ACTIVE_SPEAKER thumbnails are too small for full frame rate to show, so
+  // their uploads are paced down to this.
+  private static final long THUMBNAIL_MAX_FPS = 15;
+  // Frames drawn with the GL state cache on, and then as many with it off,
+  // by measureGlStateCache().
+  private static final int GL_STATE_CACHE_MEASUREMENT_FRAMES = 300;
+
+  // Per-stream handoff & pacing state.
+  private static class StreamState {
+    // Waiting for upload, or null.
+    I420Frame frame;
+    // When |frame| was queued, per System.nanoTime().
+    long queuedNs;
+    long lastUploadNs;
+    // Uploads of this stream are spaced at least this far apart; a frame that
+    // comes due sooner waits for a later vsync (and may be superseded).
+    long minUploadIntervalNs;
+    final FrameMetrics metrics = new FrameMetrics();
+  }
+
+  // Only touched on the render thread.
+  private HashMap<String, YuvTextures> yuvTextures =
+      new HashMap<String, YuvTextures>();
+  // Stream ids in the order their tiles are drawn, and the VBO holding the
+  // tiles' vertices in that same order.
+  private ArrayList<String> tiles = new ArrayList<String>();
+  private ArrayList<FrameMetrics> tileMetrics = new ArrayList<FrameMetrics>();
+  private FloatBuffer tileVertices = directNativeFloatBuffer(new float[0]);
+  private int[] tileVbo = new int[] { -1 };
+  private ArrayList<String> updatedStreams = new ArrayList<String>();
+  private ArrayList<I420Frame> updatedFrames = new ArrayList<I420Frame>();
   private int posLocation = -1;
+  private int tcLocation = -1;
+  private int cropLocation = -1;
+  private GlStateCache glState = new GlStateCache();
+  // glGetError() stalls until the driver has caught up, so it's only called
+  // in debuggable builds.
+  private final boolean checkGlErrors;
   private long lastFPSLogTime = System.nanoTime();
   private long numFramesSinceLastLog = 0;
-  private FramePool framePool = new FramePool();
-  // Accessed on multiple threads!  Must be synchronized.
-  private EnumMap<Endpoint, I420Frame> framesToRender =
-      new EnumMap<Endpoint, I420Frame>(Endpoint.class);
+  // Thread CPU time spent uploading and drawing since the last FPS log; only
+  // measured while |fpsLogging|.
+  private long uploadCpuNsSinceLastLog = 0;
+  private long drawCpuNsSinceLastLog = 0;
+  // Frames left to draw in a measureGlStateCache() run, or 0 if none is
+  // running, and the thread CPU time spent uploading and drawing in each half
+  // of it.
+  private int glStateCacheMeasurementFramesLeft = 0;
+  private long cachedCpuNs = 0;
+  private long uncachedCpuNs = 0;
+  // Sized for the number of streams as they come and go.
+  private final FramePool framePool = new FramePool();
+  // Accessed on multiple threads!  Must be synchronized on |streams|, as must
+  // |layout| and |activeStream|.  Iterates in the order streams were added.
+  private LinkedHashMap<String, StreamState> streams =
+      new LinkedHashMap<String, StreamState>();
+  private Layout layout = Layout.ACTIVE_SPEAKER;
+  private String activeStream = null;
+  // Set whenever the tiles need to be recomputed before the next draw.
+  private volatile boolean layoutChanged = true;
+  // Fires on the UI thread at most once per vsync, whenever frames or layout
+  // changes are pending.
+  private final RenderScheduler renderScheduler;
+  // Whether updateFrames() is queued on the render thread and hasn't started
+  // yet, in which case the next vsync needn't queue it again.  Set on the UI
+  // thread and cleared on the render thread.
+  private volatile boolean updateQueued = false;
+  private final Runnable updateFramesRunnable = new Runnable() {
+      public void run() {
+        updateFrames();
+      }
+    };
 
   public VideoStreamsView(Context c, Point screenDimensions) {
     super(c);
     this.screenDimensions = screenDimensions;
+    checkGlErrors = (c.getApplicationInfo().flags &
+                     ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+    doubleBufferTextures = Build.VERSION.SDK_INT < 19 ||
+        !((ActivityManager) c.getSystemService(Context.ACTIVITY_SERVICE))
+            .isLowRamDevice();
     setPreserveEGLContextOnPause(true);
     setEGLContextClientVersion(2);
     setRenderer(this);
     setRenderMode(RENDERMODE_WHEN_DIRTY);
+    renderScheduler = new RenderScheduler(new Runnable() {
+        public void run() {
+          if (!updateQueued) {
+            updateQueued = true;
+            queueEvent(updateFramesRunnable);
+          }
+        }
+      });
+  }
+
+  /**
+   * Log, once a second, the rendered frame rate and the CPU time the render
+   * thread spends in GL calls per frame, uploading and drawing.
+   */
+  public static void setFpsLogging(boolean enabled) {
+    fpsLogging = enabled;
+  }
+
+  /**
+   * Measure what the GL state cache saves: draw the next
+   * GL_STATE_CACHE_MEASUREMENT_FRAMES frames with it on and as many again
+   * with it off, then log the render thread's CPU time per frame for each.
+   * The two halves only compare if the streams and layout stay the same
+   * throughout, so run it on a steady call.
+   */
+  public static void measureGlStateCache() {
+    glStateCacheMeasurementRequested = true;
   }
 
-  /** Queue |frame| to be uploaded. */
-  public void queueFrame(final Endpoint stream, I420Frame frame) {
+  /**
+   * Return the frame counters and latencies of |stream|, live, or null if it
+   * hasn't been added.  They're discarded when the stream is removed.
+   */
+  public FrameMetrics getMetrics(String stream) {
+    synchronized (streams) {
+      StreamState state = streams.get(stream);
+      return state == null ? null : state.metrics;
+    }
+  }
+
+  /** Return a line of metrics for each stream, for logs and bug reports. */
+  public String dumpMetrics() {
+    StringBuilder dump = new StringBuilder();
+    synchronized (streams) {
+      for (Map.Entry<String, StreamState> entry : streams.entrySet()) {
+        dump.append(entry.getKey()).append(": ")
+            .append(entry.getValue().metrics).append('\n');
+      }
+    }
+    return dump.toString();
+  }
+
+  /** Choose how frames are handed to the render thread; see FrameHandoff. */
+  public void setFrameHandoff(FrameHandoff frameHandoff) {
+    this.frameHandoff = frameHandoff;
+  }
+
+  /** Choose how the streams' tiles are arranged; see Layout. */
+  public void setLayout(Layout layout) {
+    synchronized (streams) {
+      this.layout = layout;
+    }
+    onLayoutChanged();
+  }
+
+  /**
+   * Make |stream| the one that fills the surface in the ACTIVE_SPEAKER
+   * layout, or go back to the most recently added stream if null.
+   */
+  public void setActiveStream(String stream) {
+    synchronized (streams) {
+      activeStream = stream;
+    }
+    onLayoutChanged();
+  }
+
+  /**
+   * Give |stream| a tile.  Frames queued for streams that haven't been added
+   * are dropped.
+   */
+  public void addStream(String stream) {
+    synchronized (streams) {
+      if (streams.containsKey(stream)) {
+        return;
+      }
+      streams.put(stream, new StreamState());
+      framePool.setStreamCount(streams.size());
+    }
+    onLayoutChanged();
+  }
+
+  /** Take away |stream|'s tile and release its textures. */
+  public void removeStream(final String stream) {
+    I420Frame frameToDrop;
+    synchronized (streams) {
+      StreamState state = streams.remove(stream);
+      if (state == null) {
+        return;
+      }
+      frameToDrop = state.frame;
+      framePool.setStreamCount(streams.size());
+    }
+    if (frameToDrop != null) {
+      framePool.returnFrame(frameToDrop);
+    }
+    queueEvent(new Runnable() {
+        public void run() {
+          YuvTextures textures = yuvTextures.remove(stream);
+          if (textures != null) {
+            textures.release();
+          }
+        }
+      });
+    onLayoutChanged();
+  }
+
+  private void onLayoutChanged() {
+    layoutChanged = true;
+    renderScheduler.requestFrame();
+  }
+
+  /** Queue |frame| from |stream| to be uploaded. */
+  public void queueFrame(final String stream, I420Frame frame) {
     // Paying for the copy of the YUV data here allows CSC and painting time
     // to get spent on the render thread instead of the UI thread.
-    abortUnless(framePool.validateDimensions(frame), "Frame too large!");
-    final I420Frame frameCopy = framePool.takeFrame(frame).copyFrom(frame);
-    boolean needToScheduleRender;
-    synchronized (framesToRender) {
-      // A new render needs to be scheduled (via updateFrames()) iff there isn't
-      // already a render scheduled, which is true iff framesToRender is empty.
-      needToScheduleRender = framesToRender.isEmpty();
-      I420Frame frameToDrop = framesToRender.put(stream, frameCopy);
-      if (frameToDrop != null) {
-        framePool.returnFrame(frameToDrop);
+    abortUnless(framePool.validateDimensions(frame),
+        "Frame too large, or strides too small!");
+    I420Frame frameCopy;
+    FrameMetrics metrics;
+    synchronized (streams) {
+      StreamState state = streams.get(stream);
+      if (state == null) {
+        return;
+      }
+      metrics = state.metrics;
+      metrics.onReceived();
+      if (state.frame != null &&
+          frameHandoff == FrameHandoff.SKIP_WHILE_PENDING) {
+        metrics.onSuperseded();
+        return;
+      }
+      // Take back the frame still waiting for upload, if any, so it can be
+      // reused without the copy happening under the lock.
+      frameCopy = state.frame;
+      state.frame = null;
+      if (frameCopy != null) {
+        metrics.onSuperseded();
       }
     }
-    if (needToScheduleRender) {
-      queueEvent(new Runnable() {
-          public void run() {
-            updateFrames();
-          }
-        });
+    if (frameCopy != null && !FramePool.sameDimensions(frameCopy, frame)) {
+      framePool.returnFrame(frameCopy);
+      frameCopy = null;
     }
+    if (frameCopy == null) {
+      frameCopy = framePool.takeFrame(frame);
+    }
+    frameCopy.copyFrom(frame);
+    metrics.onCopied();
+    synchronized (streams) {
+      StreamState state = streams.get(stream);
+      if (state == null) {
+        // Removed while we were copying.
+        framePool.returnFrame(frameCopy);
+        return;
+      }
+      if (state.frame != null) {
+        // Another thread queued one for this stream while we were copying.
+        framePool.returnFrame(state.frame);
+        metrics.onSuperseded();
+      }
+      state.frame = frameCopy;
+      state.queuedNs = System.nanoTime();
+    }
+    // A no-op if this vsync's update is already requested by another frame.
+    renderScheduler.requestFrame();
   }
 
-  // Upload the planes from |framesToRender| to the textures owned by this View.
+  // Upload the pending frames that are due to the textures owned by this View,
+  // and render if anything changed.  Runs at most once per vsync.
   private void updateFrames() {
-    I420Frame localFrame = null;
-    I420Frame remoteFrame = null;
-    synchronized (framesToRender) {
-      localFrame = framesToRender.remove(Endpoint.LOCAL);
-      remoteFrame = framesToRender.remove(Endpoint.REMOTE);
-    }
-    if (localFrame != null) {
-      texImage2D(localFrame, yuvTextures[0]);
-      framePool.returnFrame(localFrame);
-    }
-    if (remoteFrame != null) {
-      texImage2D(remoteFrame, yuvTextures[1]);
-      framePool.returnFrame(remoteFrame);
-    }
-    abortUnless(localFrame != null || remoteFrame != null,
-                "Nothing to render!");
+    updateQueued = false;
+    long now = System.nanoTime();
+    boolean framesDeferred = false;
+    synchronized (streams) {
+      for (Map.Entry<String, StreamState> entry : streams.entrySet()) {
+        StreamState state = entry.getValue();
+        if (state.frame == null) {
+          continue;
+        }
+        if (now - state.queuedNs > STALE_FRAME_NS) {
+          framePool.returnFrame(state.frame);
+          state.frame = null;
+          state.metrics.onStale();
+          continue;
+        }
+        if (now - state.lastUploadNs < state.minUploadIntervalNs) {
+          framesDeferred = true;
+          continue;
+        }
+        state.lastUploadNs = now;
+        state.metrics.onUploaded(now - state.queuedNs);
+        updatedStreams.add(entry.getKey());
+        updatedFrames.add(state.frame);
+        state.frame = null;
+      }
+    }
+    if (framesDeferred) {
+      renderScheduler.requestFrame();
+    }
+    int updated = updatedFrames.size();
+    boolean timed = fpsLogging || glStateCacheMeasurementFramesLeft > 0;
+    long cpuStartNs = timed ? Debug.threadCpuTimeNanos() : 0;
+    for (int i = 0; i < updated; ++i) {
+      I420Frame frame = updatedFrames.get(i);
+      getTextures(updatedStreams.get(i)).upload(frame);
+      framePool.returnFrame(frame);
+    }
+    if (timed) {
+      onGlCpuTime(Debug.threadCpuTimeNanos() - cpuStartNs, true);
+    }
+    updatedStreams.clear();
+    updatedFrames.clear();
+    checkNoGLES2Error();
+    if (updated == 0 && !layoutChanged) {
+      // Nothing was due, or queueFrame() took the pending frame back to copy
+      // over it and will request another update once it's done.
+      return;
+    }
     requestRender();
   }
 
+  // Return the textures for |stream|, creating them if necessary.
+  private YuvTextures getTextures(String stream) {
+    YuvTextures textures = yuvTextures.get(stream);
+    if (textures == null) {
+      textures = new YuvTextures(doubleBufferTextures, glState);
+      yuvTextures.put(stream, textures);
+    }
+    return textures;
+  }
+
   /** Inform this View of the dimensions of frames coming from |stream|. */
-  public void setSize(Endpoint stream, int width, int height) {
-    // Generate 3 texture ids for Y/U/V and place them into |textures|,
-    // allocating enough storage for |width|x|height| pixels.
-    int[] textures = yuvTextures[stream == Endpoint.LOCAL ? 0 : 1];
-    GLES20.glGenTextures(3, textures, 0);
-    for (int i = 0; i < 3; ++i) {
-      int w = i == 0 ? width : width / 2;
-      int h = i == 0 ? height : height / 2;
-      GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
-      GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, w, h, 0,
-          GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, null);
-      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-          GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-          GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-          GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-          GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+  public void setSize(String stream, int width, int height) {
+    synchronized (streams) {
+      if (!streams.containsKey(stream)) {
+        return;
+      }
     }
+    // Allocate enough Y/U/V texture storage for |width|x|height| pixels,
+    // replacing (and deleting) the textures for any previous size.
+    getTextures(stream).setSize(width, height);
     checkNoGLES2Error();
   }
 
@@ -169,22 +473,180 @@ public class VideoStreamsView
 
   @Override
   public void onDrawFrame(GL10 unused) {
+    boolean timed = fpsLogging || glStateCacheMeasurementFramesLeft > 0;
+    long cpuStartNs = timed ? Debug.threadCpuTimeNanos() : 0;
+    if (layoutChanged) {
+      layoutTiles();
+    }
     GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-    drawRectangle(yuvTextures[1], remoteVertices);
-    drawRectangle(yuvTextures[0], localVertices);
+    for (int i = 0; i < tiles.size(); ++i) {
+      drawRectangle(yuvTextures.get(tiles.get(i)), i);
+    }
+    checkNoGLES2Error();
+    // The buffer swap follows as soon as we return.
+    long drawnNs = System.nanoTime();
+    for (int i = 0; i < tiles.size(); ++i) {
+      YuvTextures textures = yuvTextures.get(tiles.get(i));
+      long uploadNs = textures == null ? -1 : textures.takeUndrawnUploadNs();
+      if (uploadNs >= 0) {
+        tileMetrics.get(i).onRendered(drawnNs - uploadNs);
+      }
+    }
+    if (timed) {
+      onGlCpuTime(Debug.threadCpuTimeNanos() - cpuStartNs, false);
+    }
+    stepGlStateCacheMeasurement();
+    if (!fpsLogging) {
+      // Start counting afresh whenever logging is turned on.
+      lastFPSLogTime = System.nanoTime();
+      return;
+    }
     ++numFramesSinceLastLog;
     long now = System.nanoTime();
-    if (fpsLogging && (lastFPSLogTime == -1 || now - lastFPSLogTime > 1e9)) {
+    if (now - lastFPSLogTime > 1e9) {
       double fps = numFramesSinceLastLog / ((now - lastFPSLogTime) / 1e9);
-      Log.d(TAG, "Rendered FPS: " + fps);
+      double uploadMs = uploadCpuNsSinceLastLog / 1e6 / numFramesSinceLastLog;
+      double drawMs = drawCpuNsSinceLastLog / 1e6 / numFramesSinceLastLog;
+      Log.d(TAG, String.format(
+          "Rendered FPS: %.1f, GL CPU ms/frame: %.2f upload + %.2f draw, " +
+          "redundant GL calls skipped: %d", fps, uploadMs, drawMs,
+          glState.takeRedundantCallsSkipped()));
+      Log.d(TAG, String.format(
+          "Frame pool: %d hits, %d misses, %d evictions", framePool.getHits(),
+          framePool.getMisses(), framePool.getEvictions()));
+      Log.d(TAG, "Stream metrics:\n" + dumpMetrics());
       lastFPSLogTime = now;
-      numFramesSinceLastLog = 1;
+      numFramesSinceLastLog = 0;
+      uploadCpuNsSinceLastLog = 0;
+      drawCpuNsSinceLastLog = 0;
+    }
+  }
+
+  // Account |cpuNs| of render thread time spent uploading (if |upload|) or
+  // drawing to the FPS log and to any measureGlStateCache() run.
+  private void onGlCpuTime(long cpuNs, boolean upload) {
+    if (fpsLogging) {
+      if (upload) {
+        uploadCpuNsSinceLastLog += cpuNs;
+      } else {
+        drawCpuNsSinceLastLog += cpuNs;
+      }
+    }
+    if (glStateCacheMeasurementFramesLeft > GL_STATE_CACHE_MEASUREMENT_FRAMES) {
+      cachedCpuNs += cpuNs;
+    } else if (glStateCacheMeasurementFramesLeft > 0) {
+      uncachedCpuNs += cpuNs;
+    }
+  }
+
+  // Called after every draw: start a requested measureGlStateCache() run, or
+  // count the frame towards the one running, switching the cache off halfway
+  // and back on (logging the result) at the end.
+  private void stepGlStateCacheMeasurement() {
+    if (glStateCacheMeasurementFramesLeft == 0) {
+      if (glStateCacheMeasurementRequested) {
+        glStateCacheMeasurementRequested = false;
+        glStateCacheMeasurementFramesLeft =
+            2 * GL_STATE_CACHE_MEASUREMENT_FRAMES;
+        cachedCpuNs = 0;
+        uncachedCpuNs = 0;
+      }
+      return;
+    }
+    --glStateCacheMeasurementFramesLeft;
+    if (glStateCacheMeasurementFramesLeft ==
+        GL_STATE_CACHE_MEASUREMENT_FRAMES) {
+      glState.setEnabled(false);
+    } else if (glStateCacheMeasurementFramesLeft == 0) {
+      glState.setEnabled(true);
+      double frames = GL_STATE_CACHE_MEASUREMENT_FRAMES;
+      Log.d(TAG, String.format(
+          "GL state cache over %d frames each: GL CPU ms/frame %.3f on, " +
+          "%.3f off", GL_STATE_CACHE_MEASUREMENT_FRAMES,
+          cachedCpuNs / 1e6 / frames, uncachedCpuNs / 1e6 / frames));
+    }
+  }
+
+  // Recompute |tiles| and their vertices from the current streams and layout,
+  // and upload the vertices to |tileVbo|.
+  private void layoutTiles() {
+    Layout currentLayout;
+    String active;
+    synchronized (streams) {
+      layoutChanged = false;
+      tiles.clear();
+      tiles.addAll(streams.keySet());
+      currentLayout = layout;
+      active = activeStream;
+      if (currentLayout == Layout.ACTIVE_SPEAKER && !tiles.isEmpty()) {
+        // The active tile goes first: full screen, under the thumbnails.
+        int activeIndex = active == null ? -1 : tiles.indexOf(active);
+        tiles.add(0, tiles.remove(activeIndex < 0 ? tiles.size() - 1
+                                                  : activeIndex));
+      }
+      // Pace thumbnails' uploads; everything else uploads every frame.
+      tileMetrics.clear();
+      for (int i = 0; i < tiles.size(); ++i) {
+        StreamState state = streams.get(tiles.get(i));
+        state.minUploadIntervalNs =
+            currentLayout == Layout.ACTIVE_SPEAKER && i > 0
+                ? 1000 * 1000 * 1000 / THUMBNAIL_MAX_FPS : 0;
+        tileMetrics.add(state.metrics);
+      }
+    }
+
+    int floats = tiles.size() * VERTICES_PER_TILE * FLOATS_PER_VERTEX;
+    if (tileVertices.capacity() < floats) {
+      tileVertices = directNativeFloatBuffer(new float[floats]);
     }
+    tileVertices.clear();
+    int n = tiles.size();
+    if (currentLayout == Layout.GRID) {
+      int columns = (int) Math.ceil(Math.sqrt(n));
+      int rows = n == 0 ? 0 : (n + columns - 1) / columns;
+      float width = 2f / Math.max(columns, 1);
+      float height = 2f / Math.max(rows, 1);
+      for (int i = 0; i < n; ++i) {
+        float left = -1 + (i % columns) * width;
+        float top = 1 - (i / columns) * height;
+        putTile(left, top, left + width, top - height);
+      }
+    } else if (n > 0) {
+      putTile(-1, 1, 1, -1);
+      float step = THUMBNAIL_SIZE + THUMBNAIL_SPACING;
+      int perRow = (int) ((2 - THUMBNAIL_MARGIN) / step);
+      for (int i = 1; i < n; ++i) {
+        float right = 1 - THUMBNAIL_MARGIN - ((i - 1) % perRow) * step;
+        float top = 1 - THUMBNAIL_MARGIN - ((i - 1) / perRow) * step;
+        putTile(right - THUMBNAIL_SIZE, top, right, top - THUMBNAIL_SIZE);
+      }
+    }
+    tileVertices.flip();
+
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, tileVbo[0]);
+    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, tileVertices.limit() * 4,
+        tileVertices, GLES20.GL_DYNAMIC_DRAW);
     checkNoGLES2Error();
   }
 
+  // Append a tile spanning the given clip coordinates to |tileVertices|, as a
+  // triangle strip mapping the entire texture.
+  private void putTile(float left, float top, float right, float bottom) {
+    tileVertices.put(left).put(top).put(0).put(0);
+    tileVertices.put(left).put(bottom).put(0).put(1);
+    tileVertices.put(right).put(top).put(1).put(0);
+    tileVertices.put(right).put(bottom).put(1).put(1);
+  }
+
   @Override
   public void onSurfaceCreated(GL10 unused, EGLConfig config) {
+    // Any textures we had died with the previous EGL context, and the new
+    // context's state starts over.
+    for (YuvTextures textures : yuvTextures.values()) {
+      textures.forget();
+    }
+    glState.reset();
+
     int program = GLES20.glCreateProgram();
     addShaderTo(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_STRING, program);
     addShaderTo(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_STRING, program);
@@ -201,13 +663,26 @@ public class VideoStreamsView
     GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "u_tex"), 1);
     GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "v_tex"), 2);
 
-    // Actually set in drawRectangle(), but queried only once here.
     posLocation = GLES20.glGetAttribLocation(program, "in_pos");
+    tcLocation = GLES20.glGetAttribLocation(program, "in_tc");
+    // Actually set in drawRectangle(), but queried only once here.
+    cropLocation = GLES20.glGetUniformLocation(program, "crop");
 
-    int tcLocation = GLES20.glGetAttribLocation(program, "in_tc");
+    // Planes are uploaded at their stride, which needn't be a multiple of 4.
+    GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+
+    // Every tile is drawn from the one VBO, which stays bound; layoutTiles()
+    // fills it in.
+    GLES20.glGenBuffers(1, tileVbo, 0);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, tileVbo[0]);
+    int stride = FLOATS_PER_VERTEX * 4;
+    GLES20.glEnableVertexAttribArray(posLocation);
+    GLES20.glVertexAttribPointer(
+        posLocation, 2, GLES20.GL_FLOAT, false, stride, 0);
     GLES20.glEnableVertexAttribArray(tcLocation);
     GLES20.glVertexAttribPointer(
-        tcLocation, 2, GLES20.GL_FLOAT, false, 0, textureCoords);
+        tcLocation, 2, GLES20.GL_FLOAT, false, stride, 2 * 4);
+    layoutChanged = true;
 
     GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
     checkNoGLES2Error();
@@ -222,39 +697,18 @@ public class VideoStreamsView
     return buffer;
   }
 
-  // Upload the YUV planes from |frame| to |textures|.
-  private void texImage2D(I420Frame frame, int[] textures) {
-    for (int i = 0; i < 3; ++i) {
-      ByteBuffer plane = frame.yuvPlanes[i];
-      GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
-      int w = i == 0 ? frame.width : frame.width / 2;
-      int h = i == 0 ? frame.height : frame.height / 2;
-      abortUnless(w == frame.yuvStrides[i], frame.yuvStrides[i] + "!=" + w);
-      GLES20.glTexImage2D(
-          GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, w, h, 0,
-          GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, plane);
+  // Draw |textures| as the |tile|'th tile in |tileVbo|.
+  private void drawRectangle(YuvTextures textures, int tile) {
+    if (textures == null || !textures.hasFrame()) {
+      return;
     }
-    checkNoGLES2Error();
-  }
-
-  // Draw |textures| using |vertices| (X,Y coordinates).
-  private void drawRectangle(int[] textures, FloatBuffer vertices) {
-    for (int i = 0; i < 3; ++i) {
-      GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
-    }
-
-    GLES20.glVertexAttribPointer(
-        posLocation, 2, GLES20.GL_FLOAT, false, 0, vertices);
-    GLES20.glEnableVertexAttribArray(posLocation);
-
-    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-    checkNoGLES2Error();
+    textures.bind(cropLocation);
+    GLES20.glDrawArrays(
+        GLES20.GL_TRIANGLE_STRIP, tile * VERTICES_PER_TILE, VERTICES_PER_TILE);
   }
 
   // Compile & attach a |type| shader specified by |source| to |program|.
-  private static void addShaderTo(
+  private void addShaderTo(
       int type, String source, int program) {
     int[] result = new int[] { GLES20.GL_FALSE };
     int shader = GLES20.glCreateShader(type);
@@ -275,24 +729,16 @@ public class VideoStreamsView
     }
   }
 
-  // Assert that no OpenGL ES 2.0 error has been raised.
-  private static void checkNoGLES2Error() {
+  // Assert that no OpenGL ES 2.0 error has been raised.  A no-op unless
+  // |checkGlErrors|.
+  private void checkNoGLES2Error() {
+    if (!checkGlErrors) {
+      return;
+    }
     int error = GLES20.glGetError();
     abortUnless(error == GLES20.GL_NO_ERROR, "GLES20 error: " + error);
   }
 
-  // Remote image should span the full screen.
-  private static final FloatBuffer remoteVertices = directNativeFloatBuffer(
-      new float[] { -1, 1, -1, -1, 1, 1, 1, -1 });
-
-  // Local image should be thumbnailish.
-  private static final FloatBuffer localVertices = directNativeFloatBuffer(
-      new float[] { 0.6f, 0.9f, 0.6f, 0.6f, 0.9f, 0.9f, 0.9f, 0.6f });
-
-  // Texture Coordinates mapping the entire texture.
-  private static final FloatBuffer textureCoords = directNativeFloatBuffer(
-      new float[] { 0, 0, 0, 1, 1, 0, 1, 1 });
-
   // Pass-through vertex shader.
   private static final String VERTEX_SHADER_STRING =
       "varying vec2 interp_tc;\n" +
@@ -306,7 +752,8 @@ public class VideoStreamsView
       "}\n";
 
   // YUV to RGB pixel shader. Loads a pixel from each plane and pass through the
-  // matrix.
+  // matrix.  Planes are as wide as their stride; |crop| holds the fraction of
+  // each plane's (Y, U, V) width that's picture rather than padding.
   private static final String FRAGMENT_SHADER_STRING =
       "precision mediump float;\n" +
       "varying vec2 interp_tc;\n" +
@@ -314,11 +761,12 @@ public class VideoStreamsView
       "uniform sampler2D y_tex;\n" +
       "uniform sampler2D u_tex;\n" +
       "uniform sampler2D v_tex;\n" +
+      "uniform vec3 crop;\n" +
       "\n" +
       "void main() {\n" +
-      "  float y = texture2D(y_tex, interp_tc).r;\n" +
-      "  float u = texture2D(u_tex, interp_tc).r - .5;\n" +
-      "  float v = texture2D(v_tex, interp_tc).r - .5;\n" +
+      "  float y = texture2D(y_tex, interp_tc * vec2(crop.x, 1)).r;\n" +
+      "  float u = texture2D(u_tex, interp_tc * vec2(crop.y, 1)).r - .5;\n" +
+      "  float v = texture2D(v_tex, interp_tc * vec2(crop.z, 1)).r - .5;\n" +
       // CSC according to http://www.fourcc.org/fccyvrgb.php
       "  gl_FragColor = vec4(y + 1.403 * v, " +
       "                      y - 0.344 * u - 0.714 * v, " +
@@ -0,0 +1,192 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import android.opengl.GLES20;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The Y, U and V textures one video stream is drawn from.  Texture storage is
+ * allocated once per resolution, and frames are uploaded into it with
+ * glTexSubImage2D so the driver doesn't reallocate it for every frame.  When
+ * double-buffered, uploads alternate between two sets of textures, so that
+ * uploading frame N+1 doesn't have to wait for the draw of frame N to finish
+ * reading its textures.
+ *
+ * Planes are uploaded at their full stride, padding included, so frames from
+ * decoders that pad their rows need no repacking; the padding is cropped off
+ * by scaling texture coordinates in the shader (see bind()).
+ *
+ * All binds go through a GlStateCache shared with the rest of the GL thread,
+ * so drawing an unchanged stream again costs no texture binds at all.
+ *
+ * Must only be used on the GL thread.
+ */
+class YuvTextures {
+  // [buffer][plane]; buffer |front| holds the latest complete frame.
+  private final int[][] textures;
+  private int front = 0;
+  private int width = -1;
+  private int height = -1;
+  private final int[] strides = new int[3];
+  // Fraction of each plane's texture width that's picture, not padding.
+  private final float[] crop = new float[3];
+  private boolean hasFrame = false;
+  // When the latest frame was uploaded, per System.nanoTime(), or -1 once it
+  // has been drawn.
+  private long undrawnUploadNs = -1;
+  private final GlStateCache glState;
+
+  public YuvTextures(boolean doubleBuffered, GlStateCache glState) {
+    this.glState = glState;
+    textures = new int[doubleBuffered ? 2 : 1][3];
+    forget();
+  }
+
+  /** Whether a frame has been uploaded since storage was (re)allocated. */
+  public boolean hasFrame() {
+    return hasFrame;
+  }
+
+  /**
+   * Make sure there's storage for unpadded |width|x|height| frames, deleting
+   * the old textures if they were a different size.
+   */
+  public void setSize(int width, int height) {
+    setSize(width, height, width, width / 2, width / 2);
+  }
+
+  // Make sure there's storage for |width|x|height| frames with the given
+  // plane strides, deleting the old textures if they were a different size.
+  private void setSize(int width, int height, int yStride, int uStride,
+      int vStride) {
+    if (width == this.width && height == this.height &&
+        yStride == strides[0] && uStride == strides[1] &&
+        vStride == strides[2]) {
+      return;
+    }
+    release();
+    strides[0] = yStride;
+    strides[1] = uStride;
+    strides[2] = vStride;
+    for (int i = 0; i < 3; ++i) {
+      crop[i] = (float) (i == 0 ? width : width / 2) / strides[i];
+    }
+    for (int[] planes : textures) {
+      GLES20.glGenTextures(3, planes, 0);
+      for (int i = 0; i < 3; ++i) {
+        int w = strides[i];
+        int h = i == 0 ? height : height / 2;
+        glState.bindTexture(i, planes[i]);
+        glState.activeUnit(i);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, w, h,
+            0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+            GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+            GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+            GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+            GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+      }
+    }
+    this.width = width;
+    this.height = height;
+  }
+
+  /** Upload the YUV planes of |frame| and make them the ones drawn. */
+  public void upload(I420Frame frame) {
+    setSize(frame.width, frame.height, frame.yuvStrides[0],
+        frame.yuvStrides[1], frame.yuvStrides[2]);
+    int back = (front + 1) % textures.length;
+    for (int i = 0; i < 3; ++i) {
+      ByteBuffer plane = frame.yuvPlanes[i];
+      glState.bindTexture(i, textures[back][i]);
+      glState.activeUnit(i);
+      int w = frame.yuvStrides[i];
+      int h = i == 0 ? frame.height : frame.height / 2;
+      GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, w, h,
+          GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, plane);
+    }
+    front = back;
+    hasFrame = true;
+    undrawnUploadNs = System.nanoTime();
+  }
+
+  /**
+   * Return when the latest frame was uploaded, per System.nanoTime(), if this
+   * is the first call since; otherwise -1.  For measuring upload-to-draw
+   * latency.
+   */
+  public long takeUndrawnUploadNs() {
+    long uploadNs = undrawnUploadNs;
+    undrawnUploadNs = -1;
+    return uploadNs;
+  }
+
+  /**
+   * Bind the latest frame's Y, U and V to texture units 0, 1 and 2, and set
+   * the vec3 uniform at |cropLocation| to the fraction of each plane's width
+   * to sample, cropping off any stride padding.
+   */
+  public void bind(int cropLocation) {
+    for (int i = 0; i < 3; ++i) {
+      glState.bindTexture(i, textures[front][i]);
+    }
+    glState.setCrop(cropLocation, crop[0], crop[1], crop[2]);
+  }
+
+  /** Delete the textures, if any. */
+  public void release() {
+    if (width >= 0) {
+      for (int[] planes : textures) {
+        GLES20.glDeleteTextures(3, planes, 0);
+        glState.texturesDeleted(planes);
+      }
+    }
+    forget();
+  }
+
+  /**
+   * Forget the textures without deleting them, for when the GL context that
+   * owned them is already gone.
+   */
+  public void forget() {
+    for (int[] planes : textures) {
+      planes[0] = planes[1] = planes[2] = -1;
+    }
+    width = height = -1;
+    strides[0] = strides[1] = strides[2] = -1;
+    hasFrame = false;
+    undrawnUploadNs = -1;
+  }
+}
@@ -0,0 +1,542 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A compact codec for offers, answers and ICE candidates; other messages go
+ * as plain JSON.
+ * 
+ * SDP goes line by line, each line as a reference to the longest of a
+ * dictionary entry or the previous line that prefixes it, plus the rest of
+ * the line. Candidates go as packed fields where they round-trip exactly,
+ * and as text otherwise. Numbers are varints and strings are length-prefixed
+ * UTF-8; the whole is base64 for socket.io's text frames.
+ * 
+ * The dictionaries are part of the format: changing them needs a new NAME.
+ */
+class BinarySignalingCodec implements SignalingCodec {
+	static final String NAME = "bin1";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int OFFER = 1;
+	private static final int ANSWER = 2;
+	private static final int CANDIDATE = 3;
+	private static final int CANDIDATES = 4;
+
+	// Common whole lines and line prefixes in libjingle's SDP.
+	private static final String[] SDP_DICTIONARY = { "v=0", "o=- ", "s=-",
+			"t=0 0", "a=group:BUNDLE audio video",
+			"a=group:BUNDLE audio video data", "a=msid-semantic: WMS",
+			"m=audio 1 RTP/SAVPF ", "m=video 1 RTP/SAVPF ",
+			"m=application 1 DTLS/SCTP 5000", "m=audio ", "m=video ",
+			"m=application ", "c=IN IP4 0.0.0.0", "c=IN IP4 ",
+			"a=rtcp:1 IN IP4 0.0.0.0", "a=rtcp:", "a=candidate:",
+			"a=ice-ufrag:", "a=ice-pwd:", "a=ice-options:google-ice",
+			"a=fingerprint:sha-256 ", "a=setup:actpass", "a=setup:active",
+			"a=setup:passive", "a=mid:audio", "a=mid:video", "a=mid:data",
+			"a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level",
+			"a=extmap:2 urn:ietf:params:rtp-hdrext:toffset",
+			"a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time",
+			"a=extmap:", "a=sendrecv", "a=sendonly", "a=recvonly",
+			"a=inactive", "a=rtcp-mux",
+			"a=crypto:0 AES_CM_128_HMAC_SHA1_32 inline:",
+			"a=crypto:1 AES_CM_128_HMAC_SHA1_80 inline:", "a=crypto:",
+			"a=rtpmap:111 opus/48000/2", "a=fmtp:111 minptime=10",
+			"a=rtpmap:103 ISAC/16000", "a=rtpmap:104 ISAC/32000",
+			"a=rtpmap:0 PCMU/8000", "a=rtpmap:8 PCMA/8000",
+			"a=rtpmap:106 CN/32000", "a=rtpmap:105 CN/16000",
+			"a=rtpmap:13 CN/8000", "a=rtpmap:126 telephone-event/8000",
+			"a=rtpmap:100 VP8/90000", "a=rtpmap:116 red/90000",
+			"a=rtpmap:117 ulpfec/90000", "a=rtcp-fb:100 ccm fir",
+			"a=rtcp-fb:100 nack", "a=rtcp-fb:100 goog-remb",
+			"a=rtpmap:", "a=fmtp:", "a=rtcp-fb:", "a=maxptime:60",
+			"a=ssrc-group:FID ", "a=ssrc:",
+			"a=sctpmap:5000 webrtc-datachannel 1024", "b=AS:" };
+
+	private static final String[] MIDS = { "audio", "video", "data" };
+	private static final String[] CANDIDATE_TYPES = { "host", "srflx",
+			"prflx", "relay" };
+
+	// Packed candidate flags; the low two bits are the candidate type.
+	private static final int PACKED = 0x80;
+	private static final int TCP = 0x04;
+	private static final int IPV4 = 0x08;
+	private static final int RELATED = 0x10;
+	private static final int RELATED_IPV4 = 0x20;
+	private static final int NUMERIC_FOUNDATION = 0x40;
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public String encode(JSONObject data) throws JSONException {
+		String type = data.optString("type", null);
+		Writer out = new Writer();
+		if ("offer".equalsIgnoreCase(type) || "answer".equalsIgnoreCase(type)) {
+			out.write("offer".equalsIgnoreCase(type) ? OFFER : ANSWER);
+			writeSdp(out, data.getString("sdp"));
+		} else if ("candidate".equals(type)) {
+			out.write(CANDIDATE);
+			writeCandidate(out, data);
+		} else if ("candidates".equals(type)) {
+			JSONArray candidates = data.getJSONArray("candidates");
+			out.write(CANDIDATES);
+			out.writeVarint(candidates.length());
+			for (int i = 0; i < candidates.length(); ++i) {
+				writeCandidate(out, candidates.getJSONObject(i));
+			}
+		} else {
+			return null;
+		}
+		return Base64.encode(out.toByteArray());
+	}
+
+	@Override
+	public JSONObject decode(String payload) throws JSONException {
+		Reader in = new Reader(Base64.decode(payload));
+		JSONObject data = new JSONObject();
+		int type = in.read();
+		switch (type) {
+		case OFFER:
+		case ANSWER:
+			data.put("type", type == OFFER ? "offer" : "answer");
+			data.put("sdp", readSdp(in));
+			break;
+		case CANDIDATE:
+			data.put("type", "candidate");
+			readCandidate(in, data);
+			break;
+		case CANDIDATES:
+			data.put("type", "candidates");
+			JSONArray candidates = new JSONArray();
+			for (int n = in.readCount(); n > 0; --n) {
+				JSONObject candidate = new JSONObject();
+				readCandidate(in, candidate);
+				candidates.put(candidate);
+			}
+			data.put("candidates", candidates);
+			break;
+		default:
+			throw new JSONException("Unknown message type " + type);
+		}
+		return data;
+	}
+
+	/*
+	 * Each line is a varint reference, then the rest of the line: 0 for none,
+	 * 1 to SDP_DICTIONARY.length for an entry, or SDP_DICTIONARY.length + 1 +
+	 * n for the previous line's first n characters.
+	 */
+	private static void writeSdp(Writer out, String sdp) {
+		String[] lines = sdp.split("\r\n", -1);
+		out.writeVarint(lines.length);
+		String previous = "";
+		for (String line : lines) {
+			int ref = 0;
+			int prefix = 0;
+			for (int i = 0; i < SDP_DICTIONARY.length; ++i) {
+				String entry = SDP_DICTIONARY[i];
+				if (entry.length() > prefix && line.startsWith(entry)) {
+					ref = 1 + i;
+					prefix = entry.length();
+				}
+			}
+			int shared = 0;
+			int max = Math.min(line.length(), previous.length());
+			while (shared < max
+					&& line.charAt(shared) == previous.charAt(shared)) {
+				++shared;
+			}
+			if (shared > prefix) {
+				ref = 1 + SDP_DICTIONARY.length + shared;
+				prefix = shared;
+			}
+			out.writeVarint(ref);
+			out.writeString(line.substring(prefix));
+			previous = line;
+		}
+	}
+
+	private static String readSdp(Reader in) throws JSONException {
+		StringBuilder sdp = new StringBuilder();
+		String previous = "";
+		for (int n = in.readCount(); n > 0; --n) {
+			long ref = in.readVarint();
+			String prefix;
+			if (ref == 0) {
+				prefix = "";
+			} else if (ref <= SDP_DICTIONARY.length) {
+				prefix = SDP_DICTIONARY[(int) ref - 1];
+			} else if (ref - 1 - SDP_DICTIONARY.length <= previous.length()) {
+				prefix = previous.substring(0,
+						(int) (ref - 1 - SDP_DICTIONARY.length));
+			} else {
+				throw new JSONException("Bad SDP line reference " + ref);
+			}
+			String line = prefix + in.readString();
+			sdp.append(line);
+			if (n > 1) {
+				sdp.append("\r\n");
+			}
+			previous = line;
+		}
+		return sdp.toString();
+	}
+
+	// A candidate in Peer's JSON form: "id", "label" and "candidate".
+	private static void writeCandidate(Writer out, JSONObject json)
+			throws JSONException {
+		String mid = json.getString("id");
+		int midIndex = indexOf(MIDS, mid);
+		out.writeVarint(midIndex + 1);
+		if (midIndex < 0) {
+			out.writeString(mid);
+		}
+		out.writeVarint(json.getInt("label"));
+		String sdp = json.getString("candidate");
+		if (!writePackedCandidate(out, sdp)) {
+			out.write(0);
+			out.writeString(sdp);
+		}
+	}
+
+	private static void readCandidate(Reader in, JSONObject json)
+			throws JSONException {
+		int midIndex = in.readCount() - 1;
+		if (midIndex >= MIDS.length) {
+			throw new JSONException("Bad mid " + midIndex);
+		}
+		json.put("id", midIndex < 0 ? in.readString() : MIDS[midIndex]);
+		json.put("label", in.readCount());
+		int flags = in.read();
+		if ((flags & PACKED) == 0) {
+			json.put("candidate", in.readString());
+			return;
+		}
+		StringBuilder sdp = new StringBuilder("candidate:");
+		if ((flags & NUMERIC_FOUNDATION) != 0) {
+			sdp.append(in.readVarint());
+		} else {
+			sdp.append(in.readString());
+		}
+		sdp.append(' ').append(in.readVarint());
+		sdp.append((flags & TCP) != 0 ? " tcp " : " udp ");
+		sdp.append(in.readVarint()).append(' ');
+		readAddress(in, sdp, (flags & IPV4) != 0);
+		sdp.append(' ').append(in.readVarint());
+		sdp.append(" typ ").append(CANDIDATE_TYPES[flags & 0x03]);
+		if ((flags & RELATED) != 0) {
+			sdp.append(" raddr ");
+			readAddress(in, sdp, (flags & RELATED_IPV4) != 0);
+			sdp.append(" rport ").append(in.readVarint());
+		}
+		sdp.append(" generation ").append(in.readVarint());
+		json.put("candidate", sdp.toString());
+	}
+
+	/*
+	 * Pack a candidate line of the form libjingle writes,
+	 * "candidate:<foundation> <component> <udp|tcp> <priority> <ip> <port>
+	 * typ <type> [raddr <ip> rport <port>] generation <n>", if it reads back
+	 * exactly. Returns false, having written nothing, otherwise.
+	 */
+	private static boolean writePackedCandidate(Writer out, String sdp) {
+		String[] f = sdp.split(" ", -1);
+		boolean related = (f.length == 14);
+		if (!(f.length == 10 || related) || !f[0].startsWith("candidate:")
+				|| !f[6].equals("typ")
+				|| !f[f.length - 2].equals("generation")
+				|| (related && !(f[8].equals("raddr") && f[10]
+						.equals("rport")))) {
+			return false;
+		}
+		String foundation = f[0].substring("candidate:".length());
+		int type = indexOf(CANDIDATE_TYPES, f[7]);
+		if (type < 0 || !(f[2].equals("udp") || f[2].equals("tcp"))) {
+			return false;
+		}
+		long component;
+		long priority;
+		long port;
+		long relatedPort = 0;
+		long generation;
+		byte[] ip = parseIPv4(f[4]);
+		byte[] relatedIp = related ? parseIPv4(f[9]) : null;
+		try {
+			component = parseUnsigned(f[1]);
+			priority = parseUnsigned(f[3]);
+			port = parseUnsigned(f[5]);
+			if (related) {
+				relatedPort = parseUnsigned(f[11]);
+			}
+			generation = parseUnsigned(f[f.length - 1]);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		int flags = PACKED | type;
+		boolean numericFoundation = isUnsigned(foundation);
+		if (numericFoundation) {
+			flags |= NUMERIC_FOUNDATION;
+		}
+		if (f[2].equals("tcp")) {
+			flags |= TCP;
+		}
+		if (ip != null) {
+			flags |= IPV4;
+		}
+		if (related) {
+			flags |= RELATED;
+			if (relatedIp != null) {
+				flags |= RELATED_IPV4;
+			}
+		}
+		out.write(flags);
+		if (numericFoundation) {
+			out.writeVarint(Long.parseLong(foundation));
+		} else {
+			out.writeString(foundation);
+		}
+		out.writeVarint(component);
+		out.writeVarint(priority);
+		writeAddress(out, f[4], ip);
+		out.writeVarint(port);
+		if (related) {
+			writeAddress(out, f[9], relatedIp);
+			out.writeVarint(relatedPort);
+		}
+		out.writeVarint(generation);
+		return true;
+	}
+
+	private static void writeAddress(Writer out, String address, byte[] ipv4) {
+		if (ipv4 != null) {
+			out.write(ipv4, 0, 4);
+		} else {
+			out.writeString(address);
+		}
+	}
+
+	private static void readAddress(Reader in, StringBuilder sdp, boolean ipv4)
+			throws JSONException {
+		if (!ipv4) {
+			sdp.append(in.readString());
+			return;
+		}
+		for (int i = 0; i < 4; ++i) {
+			if (i > 0) {
+				sdp.append('.');
+			}
+			sdp.append(in.read());
+		}
+	}
+
+	// Return the bytes of dotted-quad |address|, or null if it isn't one in
+	// canonical form.
+	private static byte[] parseIPv4(String address) {
+		String[] parts = address.split("\\.", -1);
+		if (parts.length != 4) {
+			return null;
+		}
+		byte[] ip = new byte[4];
+		for (int i = 0; i < 4; ++i) {
+			if (!isUnsigned(parts[i]) || parts[i].length() > 3) {
+				return null;
+			}
+			int octet = Integer.parseInt(parts[i]);
+			if (octet > 255) {
+				return null;
+			}
+			ip[i] = (byte) octet;
+		}
+		return ip;
+	}
+
+	// Whether |s| is a decimal that reads back the same, i.e. has no sign or
+	// leading zeros and fits a long.
+	private static boolean isUnsigned(String s) {
+		if (s.isEmpty() || s.length() > 18
+				|| (s.length() > 1 && s.charAt(0) == '0')) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); ++i) {
+			if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long parseUnsigned(String s) {
+		if (!isUnsigned(s)) {
+			throw new NumberFormatException(s);
+		}
+		return Long.parseLong(s);
+	}
+
+	private static int indexOf(String[] values, String value) {
+		for (int i = 0; i < values.length; ++i) {
+			if (values[i].equals(value)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static class Writer extends ByteArrayOutputStream {
+		Writer() {
+			super(256);
+		}
+
+		void writeVarint(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		void writeString(String s) {
+			byte[] bytes = s.getBytes(UTF_8);
+			writeVarint(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+	}
+
+	// Reads what Writer wrote, failing with a JSONException, like a bad JSON
+	// message would, if it's malformed.
+	private static class Reader {
+		private final byte[] bytes;
+		private int pos = 0;
+
+		Reader(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		int read() throws JSONException {
+			if (pos >= bytes.length) {
+				throw new JSONException("Truncated message");
+			}
+			return bytes[pos++] & 0xFF;
+		}
+
+		long readVarint() throws JSONException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new JSONException("Bad varint");
+		}
+
+		// A varint that must also be a sane count or index.
+		int readCount() throws JSONException {
+			long value = readVarint();
+			if (value > bytes.length * 2L + MIDS.length) {
+				throw new JSONException("Bad count " + value);
+			}
+			return (int) value;
+		}
+
+		String readString() throws JSONException {
+			int length = readCount();
+			if (length > bytes.length - pos) {
+				throw new JSONException("Truncated string");
+			}
+			String s = new String(bytes, pos, length, UTF_8);
+			pos += length;
+			return s;
+		}
+	}
+
+	// RFC 4648 base64 without padding. (android.util.Base64 would tie the
+	// codec to Android.)
+	static class Base64 {
+		private static final char[] ALPHABET = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+				+ "abcdefghijklmnopqrstuvwxyz0123456789+/").toCharArray();
+		private static final int[] VALUES = new int[128];
+		static {
+			Arrays.fill(VALUES, -1);
+			for (int i = 0; i < ALPHABET.length; ++i) {
+				VALUES[ALPHABET[i]] = i;
+			}
+		}
+
+		static String encode(byte[] bytes) {
+			StringBuilder s = new StringBuilder((bytes.length * 4 + 2) / 3);
+			int bits = 0;
+			int buffer = 0;
+			for (byte b : bytes) {
+				buffer = (buffer << 8) | (b & 0xFF);
+				bits += 8;
+				while (bits >= 6) {
+					bits -= 6;
+					s.append(ALPHABET[(buffer >> bits) & 0x3F]);
+				}
+			}
+			if (bits > 0) {
+				s.append(ALPHABET[(buffer << (6 - bits)) & 0x3F]);
+			}
+			return s.toString();
+		}
+
+		static byte[] decode(String s) throws JSONException {
+			byte[] bytes = new byte[s.length() * 3 / 4];
+			int n = 0;
+			int bits = 0;
+			int buffer = 0;
+			for (int i = 0; i < s.length(); ++i) {
+				char c = s.charAt(i);
+				int value = c < 128 ? VALUES[c] : -1;
+				if (value < 0) {
+					throw new JSONException("Bad base64 at " + i);
+				}
+				buffer = (buffer << 6) | value;
+				bits += 6;
+				if (bits >= 8) {
+					bits -= 8;
+					bytes[n++] = (byte) (buffer >> bits);
+				}
+			}
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.webrtc.VideoCapturer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Finds the camera to capture from and opens a VideoCapturer on it. libjingle
+ * only takes a device name of the form "Camera <index>, Facing <front|back>,
+ * Orientation <degrees>", so the names are built from what
+ * android.hardware.Camera reports rather than guessed at, and the one that
+ * opened is remembered per device build, so later sessions open the camera on
+ * the first try.
+ * 
+ * Opens that find the cached name are "warm", the rest "cold". The latest time
+ * taken by each, to open and to the first captured frame, is kept alongside
+ * the cache and logged, to compare the two.
+ */
+public class CameraFinder {
+	private static final String TAG = "CameraFinder";
+	private static final String PREFS_NAME = "CameraFinder";
+	// A system update may renumber or rename cameras, so the cache is keyed by
+	// the build fingerprint rather than just the model.
+	private static final String NAME_KEY = "name:" + Build.FINGERPRINT;
+
+	private final SharedPreferences prefs;
+	private long openStartNs;
+	private boolean lastOpenWarm;
+
+	public CameraFinder(Context context) {
+		prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * Open a capturer on the first front camera, or failing that the first back
+	 * one, trying the cached camera first. Returns null if none open.
+	 */
+	public VideoCapturer open() {
+		openStartNs = System.nanoTime();
+		String cachedName = prefs.getString(NAME_KEY, null);
+		if (cachedName != null) {
+			VideoCapturer capturer = VideoCapturer.create(cachedName);
+			if (capturer != null) {
+				onOpened(cachedName, true);
+				return capturer;
+			}
+			Log.w(TAG, "Cached camera " + cachedName + " failed to open");
+		}
+		for (String name : listCameraNames()) {
+			if (name.equals(cachedName)) {
+				continue;
+			}
+			VideoCapturer capturer = VideoCapturer.create(name);
+			if (capturer != null) {
+				prefs.edit().putString(NAME_KEY, name).apply();
+				onOpened(name, false);
+				return capturer;
+			}
+		}
+		prefs.edit().remove(NAME_KEY).apply();
+		return null;
+	}
+
+	/**
+	 * Note that the capturer from the latest open() delivered its first frame,
+	 * to record the time to first frame.
+	 */
+	public void onFirstFrame() {
+		record("FirstFrameMs", "to first frame");
+	}
+
+	/**
+	 * Return the latest time, in ms, a warm or cold open() took to open the
+	 * camera, or to its first frame if |toFirstFrame|; -1 if there's none.
+	 */
+	public long getLatestMs(boolean warm, boolean toFirstFrame) {
+		return prefs.getLong(timingKey(warm, toFirstFrame ? "FirstFrameMs"
+				: "OpenMs"), -1);
+	}
+
+	private void onOpened(String name, boolean warm) {
+		lastOpenWarm = warm;
+		Log.d(TAG, "Using camera: " + name);
+		record("OpenMs", "to open");
+	}
+
+	private void record(String metric, String description) {
+		long ms = (System.nanoTime() - openStartNs) / 1000000;
+		Log.i(TAG, (lastOpenWarm ? "Warm" : "Cold") + " camera start: " + ms
+				+ "ms " + description);
+		prefs.edit().putLong(timingKey(lastOpenWarm, metric), ms).apply();
+	}
+
+	private static String timingKey(boolean warm, String metric) {
+		return (warm ? "warm" : "cold") + metric;
+	}
+
+	/**
+	 * Return the libjingle device name of every camera, front-facing ones
+	 * first.
+	 */
+	static List<String> listCameraNames() {
+		ArrayList<String> front = new ArrayList<String>();
+		ArrayList<String> back = new ArrayList<String>();
+		Camera.CameraInfo info = new Camera.CameraInfo();
+		for (int i = 0; i < Camera.getNumberOfCameras(); ++i) {
+			try {
+				Camera.getCameraInfo(i, info);
+			} catch (RuntimeException e) {
+				Log.w(TAG, "No info for camera " + i + ": " + e);
+				continue;
+			}
+			boolean isFront =
+					info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+			(isFront ? front : back).add("Camera " + i + ", Facing "
+					+ (isFront ? "front" : "back") + ", Orientation "
+					+ info.orientation);
+		}
+		front.addAll(back);
+		return front;
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import org.webrtc.AudioSource;
+import org.webrtc.MediaConstraints;
+import org.webrtc.MediaStream;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.VideoCapturer;
+import org.webrtc.VideoRenderer;
+import org.webrtc.VideoRenderer.I420Frame;
+import org.webrtc.VideoSource;
+import org.webrtc.VideoTrack;
+
+import android.util.Log;
+
+/**
+ * The local camera and microphone stream, shared by every Peer of a Session
+ * and kept across signaling reconnects, so that only PeerConnections come and
+ * go while the camera stays open.
+ * 
+ * Reference counted: start() takes the owner's reference, every Peer takes
+ * one with acquire() while its PeerConnection carries the stream, and the
+ * sources, tracks and stream are disposed once the last one is released. A
+ * PeerConnection must drop the stream before releasing it, since disposing a
+ * PeerConnection disposes every stream still added to it.
+ * 
+ * Thread safe.
+ */
+public class LocalMedia {
+	private static final String TAG = "LocalMedia";
+
+	private final PeerConnectionFactory factory;
+	private final CameraFinder cameraFinder;
+	// Where the camera is previewed.
+	private final VideoRenderer.Callbacks preview;
+
+	// All null unless started.
+	private MediaStream stream;
+	private VideoSource videoSource;
+	private AudioSource audioSource;
+	private int refs = 0;
+	private boolean paused = false;
+	// Set when the camera is (re)opened, until its first frame is previewed.
+	private volatile boolean firstFramePending = false;
+
+	private final VideoRenderer.Callbacks previewCallbacks = new VideoRenderer.Callbacks() {
+		@Override
+		public void setSize(int width, int height) {
+			preview.setSize(width, height);
+		}
+
+		@Override
+		public void renderFrame(I420Frame frame) {
+			if (firstFramePending) {
+				firstFramePending = false;
+				cameraFinder.onFirstFrame();
+			}
+			preview.renderFrame(frame);
+		}
+	};
+
+	public LocalMedia(PeerConnectionFactory factory, CameraFinder cameraFinder,
+			VideoRenderer.Callbacks preview) {
+		this.factory = factory;
+		this.cameraFinder = cameraFinder;
+		this.preview = preview;
+	}
+
+	/**
+	 * Open the camera (subject to |videoConstraints|, unless null) and the
+	 * microphone (subject to |audioConstraints|, unless null) as one stream,
+	 * taking the owner's reference to it. If the camera won't open, the
+	 * stream is audio-only. Returns false, changing nothing, if already
+	 * started.
+	 */
+	public synchronized boolean start(MediaConstraints videoConstraints,
+			MediaConstraints audioConstraints) {
+		if (stream != null) {
+			return false;
+		}
+		Log.d(TAG, "Creating local video and audio source...");
+		stream = factory.createLocalMediaStream("ARDAMS");
+		if (videoConstraints != null) {
+			VideoTrack videoTrack = createVideoTrack(videoConstraints);
+			if (videoTrack != null) {
+				stream.addTrack(videoTrack);
+			}
+		}
+		if (audioConstraints != null) {
+			audioSource = factory.createAudioSource(audioConstraints);
+			stream.addTrack(factory.createAudioTrack("ARDAMSa0", audioSource));
+		}
+		refs = 1;
+		return true;
+	}
+
+	/**
+	 * Take a reference to the stream, to add it to a PeerConnection. Returns
+	 * null, taking nothing, if not started.
+	 */
+	public synchronized MediaStream acquire() {
+		if (stream == null) {
+			return null;
+		}
+		++refs;
+		return stream;
+	}
+
+	/**
+	 * Give back a reference from start() or acquire(), disposing of everything
+	 * if it was the last.
+	 */
+	public synchronized void release() {
+		if (stream == null || --refs > 0) {
+			return;
+		}
+		Log.d(TAG, "Disposing of local media");
+		// Disposes of the tracks too; the sources have to outlive them.
+		stream.dispose();
+		stream = null;
+		if (videoSource != null) {
+			videoSource.dispose();
+			videoSource = null;
+		}
+		if (audioSource != null) {
+			audioSource.dispose();
+			audioSource = null;
+		}
+	}
+
+	/**
+	 * Reopen the camera subject to |constraints|, in place of the current
+	 * video track. The camera can't be reconfigured in place, so the old
+	 * source lets go of it first; if it then won't reopen, the stream carries
+	 * on audio-only. A no-op without video.
+	 */
+	public synchronized void setVideoConstraints(MediaConstraints constraints) {
+		if (videoSource == null) {
+			return;
+		}
+		VideoTrack oldTrack = stream.videoTracks.get(0);
+		stream.removeTrack(oldTrack);
+		oldTrack.dispose();
+		videoSource.dispose();
+		// Not release()'s to dispose again, whatever happens next.
+		videoSource = null;
+		VideoTrack videoTrack = createVideoTrack(constraints);
+		if (videoTrack == null) {
+			Log.w(TAG, "Continuing without video");
+			return;
+		}
+		stream.addTrack(videoTrack);
+	}
+
+	/** Stop capturing, e.g. while the app is in the background. */
+	public synchronized void pause() {
+		paused = true;
+		if (videoSource != null) {
+			videoSource.stop();
+		}
+	}
+
+	/** Resume capturing after pause(). */
+	public synchronized void resume() {
+		if (!paused) {
+			return;
+		}
+		paused = false;
+		if (videoSource != null) {
+			videoSource.restart();
+		}
+	}
+
+	// Open the camera as |videoSource|, subject to |constraints|, and return a
+	// track of it that's also previewed, or null if the camera won't open.
+	private VideoTrack createVideoTrack(MediaConstraints constraints) {
+		VideoCapturer capturer = cameraFinder.open();
+		if (capturer == null) {
+			Log.e(TAG, "Failed to open capturer");
+			return null;
+		}
+		firstFramePending = true;
+		videoSource = factory.createVideoSource(capturer, constraints);
+		if (paused) {
+			// resume() restarts it.
+			videoSource.stop();
+		}
+		VideoTrack videoTrack = factory.createVideoTrack("ARDAMSv0",
+				videoSource);
+		videoTrack.addRenderer(new VideoRenderer(previewCallbacks));
+		return videoTrack;
+	}
+}
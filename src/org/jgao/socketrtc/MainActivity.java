@@ -75,6 +75,8 @@ public class MainActivity extends Activity {
 		displaySize.set(Math.min(displaySize.x, displaySize.y), (int) Math
 				.round(3.0 / 4.0 * Math.min(displaySize.x, displaySize.y)));
 		vsv = new VideoStreamsView(this, displaySize);
+		// Don't pay to copy frames that would be superseded before rendering.
+		vsv.setFrameHandoff(VideoStreamsView.FrameHandoff.SKIP_WHILE_PENDING);
 		vsv.setLayoutParams(vsvLP);
 		layout.addView(vsv);
 
@@ -100,6 +102,8 @@ public class MainActivity extends Activity {
 		String url = "http://jgrmbp.csail.mit.edu:3000/?r=12345";
 		logAndToast("Connecting to " + url);
 		mSession = new Session(MainActivity.this, vsv);
+		// Open the camera while the signaling handshake is under way.
+		mSession.warmUp();
 		mSession.connect(url);
 
 		if (false) {
@@ -0,0 +1,130 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import org.json.JSONObject;
+
+/**
+ * Codec preferences and bitrate limits to negotiate with a peer. Peer applies
+ * it to every local and remote description before setting it, so e.g. a
+ * video cap on a cellular link holds in both directions.
+ * 
+ * Codecs are rtpmap encodings, either bare ("VP8") or with a clock rate
+ * ("ISAC/16000"); null means no preference. Bitrates are in kbps; negative
+ * means unset. The video start/min/max bitrates are passed to the encoder as
+ * x-google-*-bitrate fmtp parameters on the video codec, and the max ones also
+ * as each section's b=AS line.
+ */
+public class MediaPolicy {
+	public static final int UNSET = -1;
+
+	/** Leave SDP exactly as WebRTC generated it. */
+	public static final MediaPolicy DEFAULT = new MediaPolicy(null, null,
+			UNSET, UNSET, UNSET, UNSET);
+
+	// Codec the x-google bitrate parameters are attached to when no video
+	// codec is preferred.
+	private static final String DEFAULT_VIDEO_CODEC = "VP8";
+
+	public final String audioCodec;
+	public final String videoCodec;
+	public final int audioMaxKbps;
+	public final int videoMaxKbps;
+	public final int videoStartKbps;
+	public final int videoMinKbps;
+
+	public MediaPolicy(String audioCodec, String videoCodec, int audioMaxKbps,
+			int videoMaxKbps, int videoStartKbps, int videoMinKbps) {
+		this.audioCodec = audioCodec;
+		this.videoCodec = videoCodec;
+		this.audioMaxKbps = audioMaxKbps;
+		this.videoMaxKbps = videoMaxKbps;
+		this.videoStartKbps = videoStartKbps;
+		this.videoMinKbps = videoMinKbps;
+	}
+
+	/**
+	 * Parse a policy sent by the signaling server, e.g. {"videoCodec": "VP8",
+	 * "videoMaxKbps": 300}. Missing or null fields are taken from |defaults|.
+	 */
+	public static MediaPolicy fromJSON(JSONObject json, MediaPolicy defaults) {
+		return new MediaPolicy(optCodec(json, "audioCodec",
+				defaults.audioCodec), optCodec(json, "videoCodec",
+				defaults.videoCodec), json.optInt("audioMaxKbps",
+				defaults.audioMaxKbps), json.optInt("videoMaxKbps",
+				defaults.videoMaxKbps), json.optInt("videoStartKbps",
+				defaults.videoStartKbps), json.optInt("videoMinKbps",
+				defaults.videoMinKbps));
+	}
+
+	// The codec named by |key|, or |fallback| if it's absent or null; a JSON
+	// null would otherwise come back as the string "null".
+	private static String optCodec(JSONObject json, String key,
+			String fallback) {
+		return json.isNull(key) ? fallback : json.optString(key, fallback);
+	}
+
+	/** Return a new rewriter applying this policy; see SdpRewriter. */
+	public SdpRewriter newRewriter() {
+		SdpRewriter rewriter = new SdpRewriter();
+		if (audioCodec != null) {
+			rewriter.preferCodec("audio", audioCodec);
+		}
+		if (videoCodec != null) {
+			rewriter.preferCodec("video", videoCodec);
+		}
+		if (audioMaxKbps >= 0) {
+			rewriter.setBandwidth("audio", audioMaxKbps);
+		}
+		if (videoMaxKbps >= 0) {
+			rewriter.setBandwidth("video", videoMaxKbps);
+		}
+
+		StringBuilder parameters = new StringBuilder();
+		appendParameter(parameters, "x-google-min-bitrate", videoMinKbps);
+		appendParameter(parameters, "x-google-start-bitrate", videoStartKbps);
+		appendParameter(parameters, "x-google-max-bitrate", videoMaxKbps);
+		if (parameters.length() > 0) {
+			rewriter.addCodecParameters("video",
+					videoCodec != null ? videoCodec : DEFAULT_VIDEO_CODEC,
+					parameters.toString());
+		}
+		return rewriter;
+	}
+
+	private static void appendParameter(StringBuilder parameters, String name,
+			int kbps) {
+		if (kbps < 0) {
+			return;
+		}
+		if (parameters.length() > 0) {
+			parameters.append(';');
+		}
+		parameters.append(name).append('=').append(kbps);
+	}
+}
@@ -27,9 +27,11 @@
 
 package org.jgao.socketrtc;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.DataChannel;
@@ -41,6 +43,7 @@ import org.webrtc.PeerConnection.IceGatheringState;
 import org.webrtc.PeerConnectionFactory;
 import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
+import org.webrtc.StatsObserver;
 
 import android.util.Log;
 
@@ -52,18 +55,83 @@ public class Peer {
 	private Session mSession;
 
 	public String id;
-	private Queue<IceCandidate> queuedCandidates;
+	// Whether we make the offers to this peer, or answer its. Only the
+	// initiator ever offers, ICE restarts included; when the other end needs
+	// to renegotiate, it sends a "renegotiate" request for an offer instead.
+	// So offers never collide, which matters as this WebRTC can't roll one
+	// back.
+	private final boolean initiator;
+
+	/*
+	 * Negotiation state. Only touched on the session's signaling thread, and
+	 * under |pcLock| alongside |pc|; WebRTC's callbacks post there rather than
+	 * take the lock, as |pc| calls from other threads block on WebRTC's thread.
+	 */
+	// Set when ICE has failed or disconnected, until the restart offer is made
+	// (or ICE recovers on its own).
+	private boolean iceRestartNeeded = false;
+	// Set once the first offer and answer are both set.
+	private boolean negotiated = false;
+	// Set when our streams changed, until the offer carrying the change is
+	// made. Offers wait for any exchange in progress to finish.
+	private boolean negotiationNeeded = false;
+	// Set from createOffer() until the offer is set.
+	private boolean makingOffer = false;
+	// The peer's latest offer, waiting for the current exchange to finish.
+	private SessionDescription pendingRemoteOffer;
+	// Our offer or answer being set, sent to the peer once it is; a
+	// description that didn't take is never sent.
+	private SessionDescription localDescriptionToSend;
+	// Failed offers in a row. Past MAX_NEGOTIATION_FAILURES, or on any failure
+	// we can't retry, the peer is given up on; see onNegotiationFailed().
+	private static final int MAX_NEGOTIATION_FAILURES = 3;
+	private int negotiationFailures = 0;
+	// Remote candidates, held while no remote description is set.
+	private final RemoteCandidateBuffer remoteCandidates = new RemoteCandidateBuffer(
+			new RemoteCandidateBuffer.Sink() {
+				public void addCandidate(IceCandidate candidate) {
+					synchronized (pcLock) {
+						if (!closed) {
+							pc.addIceCandidate(candidate);
+						}
+					}
+				}
+			});
+	// Local candidates gathered but not yet sent. The first one in a batch
+	// schedules a flush sp.candidateBatchMs later; gathering COMPLETE flushes
+	// right away. Guarded by itself.
+	private final ArrayList<IceCandidate> pendingCandidates = new ArrayList<IceCandidate>();
+	private boolean candidateFlushScheduled;
 	public PeerConnection pc;
 	private final PCObserver pcObserver = new PCObserver();
 	private final SDPObserver sdpObserver = new SDPObserver();
 	private MediaConstraints sdpMediaConstraints;
 	private SignalingParameters sp;
-
-	public Peer(Session s, String id, PeerConnectionFactory factory,
-			MediaStream lMS, SignalingParameters sp) {
+	// Applies this peer's MediaPolicy to every description we set. Guarded by
+	// |this|, since local and remote descriptions arrive on different threads.
+	private SdpRewriter sdpRewriter;
+	// Our reference to the session's local stream, added to |pc|; null if the
+	// session isn't publishing.
+	private final LocalMedia localMedia;
+	private final MediaStream localStream;
+	// Set once |pc| is disposed, after which it mustn't be touched. Guarded by
+	// |pcLock|, so getStats() from the stats thread can't race close().
+	private boolean closed = false;
+	private final Object pcLock = new Object();
+	// Data channels to this peer, opened by either end; null once the peer is
+	// closed. Guarded by |dataChannelsLock| rather than |pcLock|, since
+	// WebRTC's thread adds to it.
+	private ArrayList<PeerDataChannel> dataChannels = new ArrayList<PeerDataChannel>();
+	private final Object dataChannelsLock = new Object();
+
+	public Peer(Session s, String id, boolean initiator,
+			PeerConnectionFactory factory, LocalMedia localMedia,
+			SignalingParameters sp, MediaPolicy mediaPolicy) {
 		this.mSession = s;
 		this.id = id;
+		this.initiator = initiator;
 		this.sp = sp;
+		this.sdpRewriter = mediaPolicy.newRewriter();
 
 		sdpMediaConstraints = new MediaConstraints();
 		sdpMediaConstraints.mandatory.add(new MediaConstraints.KeyValuePair(
@@ -71,46 +139,357 @@ public class Peer {
 		sdpMediaConstraints.mandatory.add(new MediaConstraints.KeyValuePair(
 				"OfferToReceiveVideo", "true"));
 
-		queuedCandidates = new ConcurrentLinkedQueue<IceCandidate>();
 		this.pc = factory.createPeerConnection(sp.iceServers, sp.pcConstraints,
 				pcObserver);
-		if (lMS != null) {
-			pc.addStream(lMS, new MediaConstraints());
+		this.localMedia = localMedia;
+		this.localStream = localMedia.acquire();
+		if (localStream != null) {
+			pc.addStream(localStream, new MediaConstraints());
 		}
 
-		if (sp.initiator) {
+		if (initiator) {
 			Log.d(TAG, "Creating offer...");
-			pc.createOffer(sdpObserver, sdpMediaConstraints);
+			negotiationNeeded = true;
+			maybeNegotiate();
 		}
 	}
 
-	public void onCandidateEvent(JSONObject data, Acknowledge ack) {
+	/**
+	 * Ask |pc| for stats, delivered to |observer| on a WebRTC thread. Returns
+	 * false if the request failed or the peer is closed.
+	 */
+	public boolean getStats(StatsObserver observer) {
+		synchronized (pcLock) {
+			return !closed && pc.getStats(observer, null);
+		}
+	}
+
+	/**
+	 * Open a data channel labelled |label| to this peer, reporting to
+	 * |listener|. Reliable channels are ordered and retransmit until delivered,
+	 * for e.g. file transfer; unreliable ones are unordered and never
+	 * retransmit, for e.g. telemetry that's useless once late. Returns null if
+	 * the peer is closed, or a closed channel if it closes meanwhile.
+	 */
+	public PeerDataChannel createDataChannel(String label, boolean reliable,
+			PeerDataChannel.Listener listener) {
+		DataChannel.Init init = new DataChannel.Init();
+		if (!reliable) {
+			init.ordered = false;
+			init.maxRetransmits = 0;
+		}
+		DataChannel dc;
+		synchronized (pcLock) {
+			if (closed) {
+				return null;
+			}
+			// Renegotiates, if the peer has no data channels yet.
+			dc = pc.createDataChannel(label, init);
+		}
+		PeerDataChannel channel = addDataChannel(dc, reliable, listener);
+		if (channel == null) {
+			synchronized (pcLock) {
+				if (closed) {
+					// |dc| mustn't be touched once |pc| is disposed.
+					Log.w(TAG, "Leaking data channel " + label
+							+ " to closed peer " + id);
+				} else {
+					dc.close();
+					dc.dispose();
+				}
+			}
+		}
+		return channel;
+	}
+
+	// Wrap |dc| and start it, unless the peer closed meanwhile. Returns null,
+	// without a word to |listener|, if it did; |dc| is then the caller's.
+	private PeerDataChannel addDataChannel(DataChannel dc, boolean reliable,
+			PeerDataChannel.Listener listener) {
+		PeerDataChannel channel = new PeerDataChannel(id, dc, reliable,
+				listener, mSession.getSignalingExecutor());
+		synchronized (dataChannelsLock) {
+			if (dataChannels == null) {
+				return null;
+			}
+			dataChannels.add(channel);
+		}
+		// A no-op if close() has disposed of it since.
+		channel.start();
+		return channel;
+	}
+
+	/**
+	 * Close and dispose of |pc| and its data channels, giving back the local
+	 * stream. Only the first call does anything.
+	 */
+	public void close() {
+		ArrayList<PeerDataChannel> channels;
+		synchronized (dataChannelsLock) {
+			channels = dataChannels;
+			dataChannels = null;
+		}
+		if (channels != null) {
+			for (PeerDataChannel channel : channels) {
+				channel.dispose();
+			}
+		}
+		synchronized (pcLock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			pc.close();
+			if (localStream != null) {
+				// Or disposing |pc| would dispose of the shared stream too.
+				pc.removeStream(localStream);
+			}
+			pc.dispose();
+		}
+		Log.d(TAG, "Remote ICE candidate waits for " + id + ": "
+				+ remoteCandidates.getWaits() + ", repeats dropped: "
+				+ remoteCandidates.getDuplicates());
+		if (localStream != null) {
+			localMedia.release();
+		}
+	}
+
+	// Run |r| on the session's signaling thread.
+	private void post(Runnable r) {
 		try {
-			IceCandidate candidate = new IceCandidate((String) data.get("id"),
-					data.getInt("label"), (String) data.get("candidate"));
-			Log.d(TAG, "Enqueueing remote ICE candidate: " + candidate);
-			if (queuedCandidates == null) { // remote SDP already set
-				pc.addIceCandidate(candidate);
+			mSession.getSignalingExecutor().execute(r);
+		} catch (RejectedExecutionException e) {
+			// Session is shutting down; there's nobody left to negotiate with.
+			Log.d(TAG, "Dropping negotiation with " + id);
+		}
+	}
+
+	/**
+	 * Make an offer if our streams changed or ICE needs restarting, and no
+	 * exchange is in progress; called again whenever one finishes. The offer
+	 * goes out, and the answer comes back, through the usual SDPObserver path.
+	 * If we aren't the initiator, ask the peer for an offer instead.
+	 */
+	private void maybeNegotiate() {
+		synchronized (pcLock) {
+			if (closed || makingOffer
+					|| !(negotiationNeeded || iceRestartNeeded)) {
+				return;
+			}
+			if (!initiator) {
+				// Its offer, whenever it comes, carries our streams as they
+				// are by then.
+				negotiationNeeded = false;
+				requestOffer();
+				return;
+			}
+			if (pc.signalingState() != PeerConnection.SignalingState.STABLE) {
+				return;
+			}
+			MediaConstraints constraints = sdpMediaConstraints;
+			if (iceRestartNeeded) {
+				Log.d(TAG, "Restarting ICE with " + id);
+				constraints = new MediaConstraints();
+				constraints.mandatory.addAll(sdpMediaConstraints.mandatory);
+				constraints.optional.addAll(sdpMediaConstraints.optional);
+				constraints.mandatory.add(new MediaConstraints.KeyValuePair(
+						"IceRestart", "true"));
 			} else {
-				// queuedCandidates.add(candidate);
-				queuedCandidates.offer(candidate);
+				Log.d(TAG, "Renegotiating with " + id);
+			}
+			negotiationNeeded = false;
+			iceRestartNeeded = false;
+			makingOffer = true;
+			pc.createOffer(sdpObserver, constraints);
+		}
+	}
+
+	// Start setting |sdp| as the remote description.
+	private void setRemoteDescription(SessionDescription sdp) {
+		Log.d(TAG, "Setting remote " + sdp.type);
+		// Candidates for the new description (e.g. after an ICE restart)
+		// mustn't be added before it's set.
+		remoteCandidates.hold();
+		pc.setRemoteDescription(sdpObserver, sdp);
+	}
+
+	// Ask the peer, the initiator, for an offer.
+	private void requestOffer() {
+		Log.d(TAG, "Asking " + id + " to renegotiate");
+		try {
+			mSession.sendMessage(id, false,
+					new JSONObject().put("type", "renegotiate"));
+		} catch (JSONException e) {
+			Log.e(TAG, "Error sending renegotiate message!");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Handle a remote "renegotiate" message: the peer's streams changed, so
+	 * make it an offer once no exchange is in progress.
+	 */
+	public void onRenegotiateEvent() {
+		synchronized (pcLock) {
+			if (!initiator) {
+				Log.w(TAG, "Ignoring renegotiate request from " + id
+						+ ", which makes the offers");
+				return;
 			}
+			negotiationNeeded = true;
+			maybeNegotiate();
+		}
+	}
+
+	// Handle the peer's offer, once any exchange in progress is done. Under
+	// |pcLock|.
+	private void onRemoteOffer(SessionDescription offer) {
+		if (initiator) {
+			Log.w(TAG, "Ignoring offer from " + id + ", which should ask us "
+					+ "for one");
+			return;
+		}
+		if (pc.signalingState() != PeerConnection.SignalingState.STABLE
+				|| localDescriptionToSend != null) {
+			// Newer offers replace older ones still waiting.
+			pendingRemoteOffer = offer;
+			return;
+		}
+		setRemoteDescription(offer);
+	}
+
+	// Handle the peer's answer to our offer. Under |pcLock|.
+	private void onRemoteAnswer(SessionDescription answer) {
+		PeerConnection.SignalingState state = pc.signalingState();
+		if (state != PeerConnection.SignalingState.HAVE_LOCAL_OFFER
+				|| localDescriptionToSend != null) {
+			Log.d(TAG, "Ignoring answer from " + id + ", with no offer out");
+			return;
+		}
+		setRemoteDescription(answer);
+	}
 
+	/**
+	 * Handle a remote "candidate" message, or a "candidates" message carrying
+	 * a batch of them in its "candidates" array.
+	 */
+	public void onCandidateEvent(JSONObject data, Acknowledge ack) {
+		try {
+			JSONArray batch = data.optJSONArray("candidates");
+			if (batch == null) {
+				addRemoteCandidate(data);
+				return;
+			}
+			for (int i = 0; i < batch.length(); ++i) {
+				addRemoteCandidate(batch.getJSONObject(i));
+			}
 		} catch (JSONException e) {
 			Log.d(TAG, "Error decoding ice candidate message!");
 			e.printStackTrace();
 		}
 	}
 
+	private void addRemoteCandidate(JSONObject json) throws JSONException {
+		IceCandidate candidate = new IceCandidate((String) json.get("id"),
+				json.getInt("label"), (String) json.get("candidate"));
+		Log.d(TAG, "Enqueueing remote ICE candidate: " + candidate);
+		if (!remoteCandidates.add(candidate)) {
+			Log.d(TAG, "Dropped repeated remote ICE candidate");
+		}
+	}
+
+	private static JSONObject candidateToJSON(IceCandidate candidate)
+			throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("label", candidate.sdpMLineIndex);
+		json.put("id", candidate.sdpMid);
+		json.put("candidate", candidate.sdp);
+		return json;
+	}
+
+	private final Runnable flushCandidatesRunnable = new Runnable() {
+		public void run() {
+			flushLocalCandidates();
+		}
+	};
+
+	// Queue a local candidate to go out with the current batch, starting a new
+	// batch window if there isn't one open.
+	private void queueLocalCandidate(IceCandidate candidate) {
+		synchronized (pendingCandidates) {
+			pendingCandidates.add(candidate);
+			if (candidateFlushScheduled) {
+				return;
+			}
+			candidateFlushScheduled = true;
+		}
+		try {
+			mSession.getSignalingExecutor().schedule(flushCandidatesRunnable,
+					sp.candidateBatchMs, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Session is shutting down; nobody is listening anymore.
+			Log.d(TAG, "Dropping ICE candidates for " + id);
+		}
+	}
+
+	// Send every pending local candidate to the remote end as one message.
+	private void flushLocalCandidates() {
+		IceCandidate[] batch;
+		synchronized (pendingCandidates) {
+			candidateFlushScheduled = false;
+			if (pendingCandidates.isEmpty()) {
+				return;
+			}
+			batch = pendingCandidates
+					.toArray(new IceCandidate[pendingCandidates.size()]);
+			pendingCandidates.clear();
+		}
+		try {
+			JSONArray candidates = new JSONArray();
+			for (IceCandidate candidate : batch) {
+				candidates.put(candidateToJSON(candidate));
+			}
+			JSONObject json = new JSONObject();
+			json.put("type", "candidates");
+			json.put("candidates", candidates);
+			Log.d(TAG, "sending " + batch.length + " ice candidates");
+			mSession.sendMessage(id, false, json);
+		} catch (JSONException e) {
+			Log.e(TAG, "Error creating and sending ice candidates message!");
+		}
+	}
+
+	/** Negotiate according to |policy| from the next offer or answer on. */
+	public synchronized void setMediaPolicy(MediaPolicy policy) {
+		sdpRewriter = policy.newRewriter();
+	}
+
+	// Return |sdp| rewritten to follow this peer's MediaPolicy.
+	private synchronized SessionDescription applyMediaPolicy(
+			SessionDescription sdp) {
+		if (sdpRewriter.isEmpty()) {
+			return sdp;
+		}
+		return new SessionDescription(sdp.type,
+				sdpRewriter.rewrite(sdp.description));
+	}
+
 	public void onSdpEvent(JSONObject data, Acknowledge ack) {
 		try {
 			SessionDescription remoteSdp;
-			remoteSdp = new SessionDescription(
+			remoteSdp = applyMediaPolicy(new SessionDescription(
 					SessionDescription.Type.fromCanonicalForm(data
-							.getString("type")), data.getString("sdp"));
-			Log.d(TAG, "Setting remote " + remoteSdp.type);
-
-			pc.setRemoteDescription(sdpObserver, remoteSdp);
+							.getString("type")), data.getString("sdp")));
+			synchronized (pcLock) {
+				if (closed) {
+					return;
+				}
+				if (remoteSdp.type == SessionDescription.Type.OFFER) {
+					onRemoteOffer(remoteSdp);
+				} else {
+					onRemoteAnswer(remoteSdp);
+				}
+			}
 		} catch (JSONException e1) {
 			Log.e(TAG, "Error decoding SDP JSON!");
 			e1.printStackTrace();
@@ -123,17 +502,17 @@ public class Peer {
 		@Override
 		public void onIceCandidate(final IceCandidate candidate) {
 			Log.d(TAG, "PeerConnection.Observer.onIceCandidate: " + candidate);
+			if (sp.candidateBatchMs > 0) {
+				queueLocalCandidate(candidate);
+				return;
+			}
 
-			JSONObject json = new JSONObject();
 			try {
+				JSONObject json = candidateToJSON(candidate);
 				json.put("type", "candidate");
-				json.put("label", candidate.sdpMLineIndex);
-				json.put("id", candidate.sdpMid);
-				json.put("candidate", candidate.sdp);
 
-				// TODO use correct peer ID instead of broadcasting
 				Log.d(TAG, "sending ice candidate: " + json);
-				mSession.sendMessage("asdf", true, json);
+				mSession.sendMessage(id, false, json);
 			} catch (JSONException e) {
 				Log.e(TAG, "Error creating and sending ice candidate message!");
 			}
@@ -157,6 +536,33 @@ public class Peer {
 			Log.d(TAG,
 					"PeerConnection.Observer.onIceConnectionChange: newState = "
 							+ newState);
+			switch (newState) {
+			case DISCONNECTED:
+			case FAILED:
+				// e.g. the network changed under us. Don't wait for ICE's own
+				// timeouts; gather afresh and tell the peer.
+				if (initiator) {
+					post(new Runnable() {
+						public void run() {
+							iceRestartNeeded = true;
+							maybeNegotiate();
+						}
+					});
+				} else {
+					Log.d(TAG, "Waiting for " + id + " to restart ICE");
+				}
+				break;
+			case CONNECTED:
+			case COMPLETED:
+				post(new Runnable() {
+					public void run() {
+						iceRestartNeeded = false;
+					}
+				});
+				break;
+			default:
+				break;
+			}
 		}
 
 		@Override
@@ -167,116 +573,211 @@ public class Peer {
 			if (newState == IceGatheringState.NEW) {
 			} else if (newState == IceGatheringState.GATHERING) {
 			} else if (newState == IceGatheringState.COMPLETE) {
+				// No more candidates are coming, so don't sit out the window.
+				flushLocalCandidates();
 			}
 		}
 
 		@Override
 		public void onAddStream(final MediaStream stream) {
-			mSession.onPeerAddedStream(stream);
+			mSession.onPeerAddedStream(id, stream);
 		}
 
 		@Override
 		public void onRemoveStream(final MediaStream stream) {
 			Log.d(TAG, "PeerConnection.Observer.onRemoveStream");
+			mSession.onPeerRemovedStream(id, stream);
 			stream.videoTracks.get(0).dispose();
 		}
 
 		@Override
 		public void onDataChannel(final DataChannel dc) {
-			Log.d(TAG, "PeerConnection.Observer.onDataChannel");
-			throw new RuntimeException(
-					"AppRTC doesn't use data channels, but got: " + dc.label()
-							+ " anyway!");
+			Log.d(TAG, "PeerConnection.Observer.onDataChannel: " + dc.label());
+			PeerDataChannel.Listener listener = mSession
+					.getDataChannelListener();
+			if (listener == null) {
+				Log.w(TAG, "Closing data channel " + dc.label() + " from " + id
+						+ ", which nobody is listening for");
+				dc.close();
+				dc.dispose();
+				return;
+			}
+			// We can't tell how the peer set it up, so treat it as reliable:
+			// refuse sends when backed up rather than drop queued ones.
+			if (addDataChannel(dc, true, listener) == null) {
+				// Closing; |pc| outlives this callback, so |dc| can go now.
+				dc.close();
+				dc.dispose();
+			}
 		}
 
 		@Override
 		public void onRenegotiationNeeded() {
 			Log.d(TAG, "PeerConnection.Observer.onRenegotiationNeeded");
-			// TODO rexchange SDP O/A
+			// e.g. a track was added to or removed from the local stream.
+			post(new Runnable() {
+				public void run() {
+					if (!negotiated) {
+						// Adding the stream in the constructor lands here too;
+						// the first offer or answer already carries it.
+						return;
+					}
+					negotiationNeeded = true;
+					maybeNegotiate();
+				}
+			});
+		}
+	}
+
+	// Set our new offer or answer as the local description; it's sent once
+	// that succeeds.
+	private void onLocalDescriptionCreated(SessionDescription origSdp) {
+		// Set my offer or answer, as munged by my MediaPolicy, as my local
+		// description
+		SessionDescription sdp = applyMediaPolicy(origSdp);
+		synchronized (pcLock) {
+			if (closed) {
+				return;
+			}
+			localDescriptionToSend = sdp;
+			pc.setLocalDescription(sdpObserver, sdp);
+		}
+	}
+
+	// Send my offer or answer to the remote end
+	private void sendLocalDescription(SessionDescription sdp) {
+		JSONObject offerMsg = new JSONObject();
+		try {
+			offerMsg.put("type", sdp.type);
+			offerMsg.put("sdp", sdp.description);
+			Log.d(TAG, "Sending " + sdp.type);
+
+			mSession.sendMessage(id, false, offerMsg);
+		} catch (JSONException e) {
+			Log.e(TAG, "Error creating or sending SDP message!");
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Recover from a failed createOffer(), createAnswer() or set, with |error|.
+	 * Nothing was sent for it. Our own offer failing leaves us STABLE, so the
+	 * initiator retries it a few times. Anything else leaves one end waiting
+	 * on the other for good, as this WebRTC can't roll back, so the Session
+	 * drops the peer, telling it so.
+	 */
+	private void onNegotiationFailed(String error) {
+		boolean retry;
+		synchronized (pcLock) {
+			if (closed) {
+				return;
+			}
+			Log.e(TAG, "Negotiation with " + id + " failed: " + error);
+			makingOffer = false;
+			localDescriptionToSend = null;
+			pendingRemoteOffer = null;
+			PeerConnection.SignalingState state = pc.signalingState();
+			retry = initiator
+					&& state == PeerConnection.SignalingState.STABLE
+					&& ++negotiationFailures < MAX_NEGOTIATION_FAILURES;
+			if (retry) {
+				negotiationNeeded = true;
+				maybeNegotiate();
+			}
+		}
+		if (!retry) {
+			mSession.onPeerFailed(id);
+		}
+	}
+
+	// Take the next step now that a description, ours or theirs, is set.
+	private void onDescriptionSet() {
+		synchronized (pcLock) {
+			if (closed) {
+				return;
+			}
+			// Go by where the exchange stands rather than by who made the first
+			// offer, so re-offers from either end work too.
+			PeerConnection.SignalingState state = pc.signalingState();
+			Log.d(TAG, "SdpObserver.onSetSuccess, now " + state);
+
+			if (pc.getRemoteDescription() != null) {
+				// Whichever end offered, remote candidates can go in now.
+				remoteCandidates.open();
+			}
+			if (localDescriptionToSend != null) {
+				sendLocalDescription(localDescriptionToSend);
+				localDescriptionToSend = null;
+				makingOffer = false;
+			}
+
+			switch (state) {
+			case HAVE_REMOTE_OFFER:
+				// We just set the remote OFFER, now create ANSWER.
+				Log.d(TAG, "Set remote OFFER, creating ANSWER");
+				pc.createAnswer(sdpObserver, sdpMediaConstraints);
+				break;
+			case STABLE:
+				// We just set the answer, ours or theirs. Take any offer from
+				// the peer that waited for this exchange to finish, or else
+				// make (or ask for) one of our own.
+				negotiated = true;
+				negotiationFailures = 0;
+				if (pendingRemoteOffer != null) {
+					SessionDescription offer = pendingRemoteOffer;
+					pendingRemoteOffer = null;
+					setRemoteDescription(offer);
+				} else {
+					maybeNegotiate();
+				}
+				break;
+			default:
+				// We set our OFFER; wait for the ANSWER.
+				break;
+			}
 		}
 	}
 
 	// Implementation detail: handle offer creation/signaling and answer
-	// setting, as well as adding remote ICE candidates once answer SDP is set
+	// setting, passing each step on to the signaling thread.
 	private class SDPObserver implements SdpObserver {
 		@Override
 		public void onCreateSuccess(final SessionDescription origSdp) {
 			Log.d(TAG, "SdpObserver.onCreateSuccess()");
-
-			// Set my offer or answer as my local description
-			SessionDescription sdp = new SessionDescription(origSdp.type,
-					origSdp.description);
-			pc.setLocalDescription(sdpObserver, sdp);
-
-			// Send my offer or answer to the remote end
-			JSONObject offerMsg = new JSONObject();
-			try {
-				offerMsg.put("type", sdp.type);
-				offerMsg.put("sdp", sdp.description);
-				Log.d(TAG, "Sending " + origSdp.type);
-
-				// TODO use correct peer ID instead of broadcasting
-				mSession.sendMessage("asdf", true, offerMsg);
-			} catch (JSONException e) {
-				Log.e(TAG, "Error creating or sending SDP message!");
-				e.printStackTrace();
-			}
+			post(new Runnable() {
+				public void run() {
+					onLocalDescriptionCreated(origSdp);
+				}
+			});
 		}
 
 		@Override
 		public void onSetSuccess() {
-			Log.d(TAG, "SdpObserver.onSetSuccess");
-
-			if (sp.initiator) {
-				// We sent the OFFER, and received and SET the ANSWER
-				if (pc.getRemoteDescription() != null) {
-					/*
-					 * We already set our local offer and just set the remote
-					 * answer, both sides have both SDPs, so drain ICE
-					 * candidates.
-					 */
-					drainRemoteIceCandidates();
+			post(new Runnable() {
+				public void run() {
+					onDescriptionSet();
 				}
-			} else {
-				// We received an OFFER, and will now create an ANSWER
-				if (pc.getLocalDescription() == null) {
-					// We just set the remote OFFER, now create ANSWER.
-					Log.d(TAG, "Set remote OFFER, creating ANSWER");
-					pc.createAnswer(SDPObserver.this, sdpMediaConstraints);
-				} else {
-					/*
-					 * We already sent our answer and set it as local
-					 * description; both sides have both SDPs, so drain ICE
-					 * candidates.
-					 */
-					drainRemoteIceCandidates();
-				}
-			}
+			});
 		}
 
 		@Override
 		public void onCreateFailure(final String error) {
 			Log.d(TAG, "SdpObserver.onCreateFailure");
-			throw new RuntimeException("createSDP error: " + error);
+			post(new Runnable() {
+				public void run() {
+					onNegotiationFailed("createSDP error: " + error);
+				}
+			});
 		}
 
 		@Override
 		public void onSetFailure(final String error) {
 			Log.d(TAG, "SdpObserver.onSetFailure");
-			throw new RuntimeException("setSDP error: " + error);
-		}
-
-		public void drainRemoteIceCandidates() {
-			Log.d(TAG, "Draining remote ICE candidates...");
-			if (queuedCandidates != null) {
-				for (IceCandidate candidate : queuedCandidates) {
-					pc.addIceCandidate(candidate);
+			post(new Runnable() {
+				public void run() {
+					onNegotiationFailed("setSDP error: " + error);
 				}
-				queuedCandidates.clear();
-				queuedCandidates = null;
-			} else {
-				Log.d(TAG, "queuedCandidates is NULL!");
-			}
+			});
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,301 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.webrtc.DataChannel;
+
+import android.util.Log;
+
+/**
+ * An SCTP data channel to a peer, opened by either end. send() never blocks:
+ * messages queue here and are handed to WebRTC on the session's signaling
+ * thread while less than HIGH_WATER_BYTES is buffered in the channel. This
+ * WebRTC has no buffered-amount callback, so while messages wait the channel
+ * is checked again every POLL_MS.
+ * 
+ * Payloads aren't copied on the way through. Outgoing buffers are queued as
+ * given and only read when sent, where WebRTC copies them into its message;
+ * incoming ones wrap WebRTC's memory and are only valid during onMessage().
+ */
+public class PeerDataChannel {
+	private static final String TAG = "PeerDataChannel";
+
+	// Hand WebRTC no more while it has this much buffered.
+	static final long HIGH_WATER_BYTES = 256 * 1024;
+	// The most that may wait here. Past it, reliable channels refuse to send,
+	// and unreliable ones drop their oldest messages. A message larger than
+	// this is refused by either.
+	static final long MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+	static final long POLL_MS = 20;
+
+	public interface Listener {
+		/** Called on the signaling thread once |channel| can send. */
+		public void onOpen(PeerDataChannel channel);
+
+		/**
+		 * Called on a WebRTC thread with each message. |data| is only valid
+		 * during the call, so copy out what's needed, and don't block.
+		 */
+		public void onMessage(PeerDataChannel channel, ByteBuffer data,
+				boolean binary);
+
+		/**
+		 * Called once |channel| is closed, by either end or along with its
+		 * peer. Anything still queued is dropped.
+		 */
+		public void onClose(PeerDataChannel channel);
+	}
+
+	private final String peerId;
+	private final DataChannel dc;
+	private final String label;
+	private final boolean reliable;
+	private final Listener listener;
+	private final ScheduledExecutorService executor;
+
+	// Messages not yet handed to WebRTC, and their total size. Guarded by
+	// |this|, as is |dc| once the channel is built.
+	private final ArrayDeque<DataChannel.Buffer> queue = new ArrayDeque<DataChannel.Buffer>();
+	private long queuedBytes = 0;
+	private long dropped = 0;
+	private boolean flushScheduled = false;
+	// Set once start()ed, from when |listener| hears of the channel.
+	private boolean started = false;
+	private boolean disposed = false;
+	// The state last reported to |listener|.
+	private DataChannel.State reportedState = DataChannel.State.CONNECTING;
+
+	PeerDataChannel(String peerId, DataChannel dc, boolean reliable,
+			Listener listener, ScheduledExecutorService executor) {
+		this.peerId = peerId;
+		this.dc = dc;
+		this.label = dc.label();
+		this.reliable = reliable;
+		this.listener = listener;
+		this.executor = executor;
+	}
+
+	/**
+	 * Start watching the channel and reporting to the listener, once its peer
+	 * has taken it. A no-op if it was disposed first.
+	 */
+	synchronized void start() {
+		if (disposed) {
+			return;
+		}
+		started = true;
+		dc.registerObserver(new DataChannel.Observer() {
+			// Both on a WebRTC thread.
+			@Override
+			public void onStateChange() {
+				post(checkStateRunnable, 0);
+			}
+
+			@Override
+			public void onMessage(DataChannel.Buffer buffer) {
+				listener.onMessage(PeerDataChannel.this, buffer.data,
+						buffer.binary);
+			}
+		});
+		// A channel the peer opened may be open already.
+		post(checkStateRunnable, 0);
+	}
+
+	public String getPeerId() {
+		return peerId;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public boolean isReliable() {
+		return reliable;
+	}
+
+	/**
+	 * Queue |data|, from its position to its limit, to be sent. It isn't
+	 * copied, so leave its contents alone afterwards. Returns false if the
+	 * channel is closed, if |data| is larger than MAX_QUEUED_BYTES, or if the
+	 * channel is reliable and has MAX_QUEUED_BYTES waiting.
+	 */
+	public boolean send(ByteBuffer data, boolean binary) {
+		int size = data.remaining();
+		if (size > MAX_QUEUED_BYTES) {
+			// It could never fit, and would only flush out everything queued.
+			return false;
+		}
+		synchronized (this) {
+			if (disposed || reportedState == DataChannel.State.CLOSED) {
+				return false;
+			}
+			if (queuedBytes + size > MAX_QUEUED_BYTES) {
+				if (reliable) {
+					return false;
+				}
+				// Late is as good as lost here; keep the newest.
+				while (!queue.isEmpty()
+						&& queuedBytes + size > MAX_QUEUED_BYTES) {
+					queuedBytes -= queue.poll().data.remaining();
+					++dropped;
+				}
+			}
+			queue.add(new DataChannel.Buffer(data.slice(), binary));
+			queuedBytes += size;
+			scheduleFlush(0);
+		}
+		return true;
+	}
+
+	/** Return the number of bytes queued here, not yet handed to WebRTC. */
+	public synchronized long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/** Return the number of messages an unreliable channel dropped unsent. */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/** Start closing the channel at both ends. */
+	public synchronized void close() {
+		if (!disposed) {
+			dc.close();
+		}
+	}
+
+	/**
+	 * Close the channel and let go of it, e.g. as its peer goes. Only the
+	 * first call does anything, and the listener only hears of it if the
+	 * channel was started.
+	 */
+	void dispose() {
+		boolean notify;
+		synchronized (this) {
+			if (disposed) {
+				return;
+			}
+			disposed = true;
+			notify = started && reportedState != DataChannel.State.CLOSED;
+			reportedState = DataChannel.State.CLOSED;
+			queue.clear();
+			queuedBytes = 0;
+			if (started) {
+				dc.unregisterObserver();
+			}
+			dc.close();
+			dc.dispose();
+		}
+		if (notify) {
+			listener.onClose(this);
+		}
+	}
+
+	// Run |r| on the signaling thread in |delayMs|.
+	private void post(Runnable r, long delayMs) {
+		try {
+			executor.schedule(r, delayMs, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Session is shutting down; the channel goes with its peer.
+			Log.d(TAG, "Dropping data channel work for " + peerId);
+		}
+	}
+
+	// Under |this|.
+	private void scheduleFlush(long delayMs) {
+		if (flushScheduled) {
+			return;
+		}
+		flushScheduled = true;
+		post(flushRunnable, delayMs);
+	}
+
+	// Hand queued messages to WebRTC until it has enough buffered.
+	private final Runnable flushRunnable = new Runnable() {
+		public void run() {
+			synchronized (PeerDataChannel.this) {
+				flushScheduled = false;
+				if (disposed || dc.state() != DataChannel.State.OPEN) {
+					// Opening flushes too.
+					return;
+				}
+				while (!queue.isEmpty()
+						&& dc.bufferedAmount() < HIGH_WATER_BYTES) {
+					DataChannel.Buffer buffer = queue.poll();
+					queuedBytes -= buffer.data.remaining();
+					if (!dc.send(buffer)) {
+						Log.w(TAG, "Failed to send on " + label + " to "
+								+ peerId);
+					}
+				}
+				if (!queue.isEmpty()) {
+					scheduleFlush(POLL_MS);
+				}
+			}
+		}
+	};
+
+	// Tell |listener| when the channel opens or closes.
+	private final Runnable checkStateRunnable = new Runnable() {
+		public void run() {
+			DataChannel.State state;
+			synchronized (PeerDataChannel.this) {
+				if (disposed) {
+					return;
+				}
+				state = dc.state();
+				if (state == reportedState) {
+					return;
+				}
+				if (state == DataChannel.State.OPEN) {
+					scheduleFlush(0);
+				} else if (state == DataChannel.State.CLOSED) {
+					queue.clear();
+					queuedBytes = 0;
+				} else {
+					// Still CONNECTING, or CLOSING.
+					return;
+				}
+				reportedState = state;
+			}
+			Log.d(TAG, "Data channel " + label + " to " + peerId + " now "
+					+ state);
+			if (state == DataChannel.State.OPEN) {
+				listener.onOpen(PeerDataChannel.this);
+			} else {
+				listener.onClose(PeerDataChannel.this);
+			}
+		}
+	};
+}
@@ -0,0 +1,288 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import org.webrtc.StatsReport;
+
+/**
+ * Call quality of one peer over time, built from successive getStats() polls.
+ * Cumulative counters (bytes, packets, losses) are differenced between polls
+ * into rates; gauges (RTT, jitter, frame rates) are taken as reported. The
+ * last CAPACITY samples are kept in primitive ring buffers, so polling for the
+ * whole length of a call costs no memory.
+ * 
+ * Reports are summed over every send or receive SSRC, so e.g. SEND_KBPS is
+ * audio and video together. Metrics a poll didn't report are NaN.
+ */
+public class PeerStats {
+	public static enum Metric {
+		SEND_KBPS, RECEIVE_KBPS,
+		// The bandwidth estimator's idea of what we could send.
+		AVAILABLE_SEND_KBPS,
+		RTT_MS,
+		// Of our packets, as reported back by the peer.
+		SEND_LOSS_PERCENT,
+		RECEIVE_LOSS_PERCENT, JITTER_MS, SEND_FPS, RECEIVE_FPS
+	}
+
+	public static final int CAPACITY = 60;
+
+	private static final Metric[] METRICS = Metric.values();
+
+	// [metric][sample], sample |next - 1| being the latest.
+	private final float[][] series = new float[METRICS.length][CAPACITY];
+	private final long[] timestampsMs = new long[CAPACITY];
+	private int next = 0;
+	private int size = 0;
+	// The sample being built by update().
+	private final float[] scratch = new float[METRICS.length];
+
+	// Cumulative counters of the previous and current poll.
+	private final Totals previous = new Totals();
+	private final Totals current = new Totals();
+	private boolean hasPrevious = false;
+
+	private static class Totals {
+		double timestampMs;
+		long bytesSent, bytesReceived;
+		long packetsSent, packetsReceived;
+		long packetsLostSent, packetsLostReceived;
+
+		void clear() {
+			timestampMs = 0;
+			bytesSent = bytesReceived = 0;
+			packetsSent = packetsReceived = 0;
+			packetsLostSent = packetsLostReceived = 0;
+		}
+
+		void copyFrom(Totals other) {
+			timestampMs = other.timestampMs;
+			bytesSent = other.bytesSent;
+			bytesReceived = other.bytesReceived;
+			packetsSent = other.packetsSent;
+			packetsReceived = other.packetsReceived;
+			packetsLostSent = other.packetsLostSent;
+			packetsLostReceived = other.packetsLostReceived;
+		}
+	}
+
+	/**
+	 * Fold in the reports of one poll, adding a sample unless it's the first
+	 * poll (which only has counters to difference later ones against).
+	 */
+	public synchronized void update(StatsReport[] reports) {
+		current.clear();
+		float rttMs = Float.NaN, jitterMs = Float.NaN;
+		float sendFps = Float.NaN, receiveFps = Float.NaN;
+		float availableSendKbps = Float.NaN;
+		for (StatsReport report : reports) {
+			current.timestampMs = Math.max(current.timestampMs,
+					report.timestamp);
+			if ("VideoBwe".equals(report.type)) {
+				double bps = value(report, "googAvailableSendBandwidth");
+				if (!Double.isNaN(bps)) {
+					availableSendKbps = (float) (bps / 1000);
+				}
+				continue;
+			}
+			if (!"ssrc".equals(report.type)) {
+				continue;
+			}
+			double bytesSent = value(report, "bytesSent");
+			if (!Double.isNaN(bytesSent)) {
+				current.bytesSent += (long) bytesSent;
+				current.packetsSent += (long) value(report, "packetsSent", 0);
+				current.packetsLostSent += (long) value(report, "packetsLost",
+						0);
+				rttMs = max(rttMs, value(report, "googRtt"));
+				sendFps = sum(sendFps, value(report, "googFrameRateSent"));
+			}
+			double bytesReceived = value(report, "bytesReceived");
+			if (!Double.isNaN(bytesReceived)) {
+				current.bytesReceived += (long) bytesReceived;
+				current.packetsReceived += (long) value(report,
+						"packetsReceived", 0);
+				current.packetsLostReceived += (long) value(report,
+						"packetsLost", 0);
+				jitterMs = max(jitterMs, value(report, "googJitterReceived"));
+				receiveFps = sum(receiveFps,
+						value(report, "googFrameRateReceived"));
+			}
+		}
+
+		double intervalMs = current.timestampMs - previous.timestampMs;
+		if (hasPrevious && intervalMs > 0) {
+			float[] sample = scratch;
+			sample[Metric.SEND_KBPS.ordinal()] = kbps(current.bytesSent
+					- previous.bytesSent, intervalMs);
+			sample[Metric.RECEIVE_KBPS.ordinal()] = kbps(
+					current.bytesReceived - previous.bytesReceived, intervalMs);
+			sample[Metric.AVAILABLE_SEND_KBPS.ordinal()] = availableSendKbps;
+			sample[Metric.RTT_MS.ordinal()] = rttMs;
+			// The peer reports how many of the packets we sent it lost.
+			sample[Metric.SEND_LOSS_PERCENT.ordinal()] = lossPercent(
+					current.packetsLostSent - previous.packetsLostSent,
+					current.packetsSent - previous.packetsSent);
+			long lostReceived = current.packetsLostReceived
+					- previous.packetsLostReceived;
+			sample[Metric.RECEIVE_LOSS_PERCENT.ordinal()] = lossPercent(
+					lostReceived, current.packetsReceived
+							- previous.packetsReceived + lostReceived);
+			sample[Metric.JITTER_MS.ordinal()] = jitterMs;
+			sample[Metric.SEND_FPS.ordinal()] = sendFps;
+			sample[Metric.RECEIVE_FPS.ordinal()] = receiveFps;
+			for (int m = 0; m < METRICS.length; ++m) {
+				series[m][next] = sample[m];
+			}
+			timestampsMs[next] = (long) current.timestampMs;
+			next = (next + 1) % CAPACITY;
+			size = Math.min(size + 1, CAPACITY);
+		}
+		previous.copyFrom(current);
+		hasPrevious = true;
+	}
+
+	/** Return the number of samples kept, at most CAPACITY. */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Return |metric| from |ago| samples before the latest (0 being the latest),
+	 * or NaN if there's no such sample or it wasn't reported.
+	 */
+	public synchronized float get(Metric metric, int ago) {
+		if (ago < 0 || ago >= size) {
+			return Float.NaN;
+		}
+		return series[metric.ordinal()][index(ago)];
+	}
+
+	/** Return |metric| from the latest sample, or NaN. */
+	public float getLatest(Metric metric) {
+		return get(metric, 0);
+	}
+
+	/**
+	 * Return the change in |metric| over the last |samples| samples, or NaN if
+	 * there aren't that many.
+	 */
+	public synchronized float getDelta(Metric metric, int samples) {
+		return get(metric, 0) - get(metric, samples);
+	}
+
+	/**
+	 * Return the mean of |metric| over the last |samples| samples that reported
+	 * it, or NaN if none did.
+	 */
+	public synchronized float getAverage(Metric metric, int samples) {
+		float total = 0;
+		int reported = 0;
+		for (int ago = 0; ago < Math.min(samples, size); ++ago) {
+			float value = series[metric.ordinal()][index(ago)];
+			if (!Float.isNaN(value)) {
+				total += value;
+				++reported;
+			}
+		}
+		return reported == 0 ? Float.NaN : total / reported;
+	}
+
+	/**
+	 * Return the time of the sample |ago| samples before the latest, in the
+	 * milliseconds of StatsReport.timestamp, or -1 if there's no such sample.
+	 */
+	public synchronized long getTimestampMs(int ago) {
+		if (ago < 0 || ago >= size) {
+			return -1;
+		}
+		return timestampsMs[index(ago)];
+	}
+
+	/** The latest sample, for logs. */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Metric metric : METRICS) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(metric.name().toLowerCase()).append('=')
+					.append(getLatest(metric));
+		}
+		return sb.toString();
+	}
+
+	private int index(int ago) {
+		return (next - 1 - ago + CAPACITY) % CAPACITY;
+	}
+
+	// Return the numeric value of |name| in |report|, or NaN if it's missing
+	// or not a number.
+	private static double value(StatsReport report, String name) {
+		for (StatsReport.Value value : report.values) {
+			if (name.equals(value.name)) {
+				try {
+					return Double.parseDouble(value.value);
+				} catch (NumberFormatException e) {
+					return Double.NaN;
+				}
+			}
+		}
+		return Double.NaN;
+	}
+
+	private static double value(StatsReport report, String name,
+			double missing) {
+		double value = value(report, name);
+		return Double.isNaN(value) ? missing : value;
+	}
+
+	private static float max(float a, double b) {
+		return Double.isNaN(b) ? a : Float.isNaN(a) ? (float) b : Math.max(a,
+				(float) b);
+	}
+
+	private static float sum(float a, double b) {
+		return Double.isNaN(b) ? a : Float.isNaN(a) ? (float) b : a
+				+ (float) b;
+	}
+
+	// Counters restart from zero when SSRCs come and go; treat that as no
+	// traffic rather than negative traffic.
+	private static float kbps(long bytes, double intervalMs) {
+		return (float) (Math.max(bytes, 0) * 8 / intervalMs);
+	}
+
+	private static float lossPercent(long lost, long total) {
+		if (total <= 0) {
+			return Float.NaN;
+		}
+		return Math.min(100f * Math.max(lost, 0) / total, 100f);
+	}
+}
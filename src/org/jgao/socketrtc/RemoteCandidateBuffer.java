@@ -0,0 +1,139 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.appspot.apprtc.LatencyHistogram;
+import org.webrtc.IceCandidate;
+
+/**
+ * Holds a peer's remote ICE candidates until they can be added to its
+ * PeerConnection, i.e. while no remote description is set or a new one is
+ * being set, then passes them on in arrival order. Either end may be the
+ * offerer; all that matters is when the remote description lands.
+ * 
+ * Lock-free: add() always enqueues first and then drains if open, and only
+ * one thread drains at a time, re-checking the queue after it stops, so a
+ * candidate racing with open() or with another drain is never stranded.
+ * Repeats of a candidate already seen are dropped, and the time each
+ * candidate waited is recorded.
+ */
+public class RemoteCandidateBuffer {
+	public interface Sink {
+		/** Called with each candidate, in order, on whichever thread drains. */
+		public void addCandidate(IceCandidate candidate);
+	}
+
+	private static class Entry {
+		final IceCandidate candidate;
+		final long queuedNs;
+
+		Entry(IceCandidate candidate) {
+			this.candidate = candidate;
+			this.queuedNs = System.nanoTime();
+		}
+	}
+
+	private final Sink sink;
+	private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+	private final Set<String> seen = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private volatile boolean open = false;
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+	private final AtomicLong duplicates = new AtomicLong();
+	private final LatencyHistogram waits = new LatencyHistogram();
+
+	public RemoteCandidateBuffer(Sink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Take a remote candidate, passing it on right away if open. Returns false
+	 * if it repeats one already taken.
+	 */
+	public boolean add(IceCandidate candidate) {
+		if (!seen.add(candidate.sdpMid + "/" + candidate.sdpMLineIndex + "/"
+				+ candidate.sdp)) {
+			duplicates.incrementAndGet();
+			return false;
+		}
+		queue.offer(new Entry(candidate));
+		if (open) {
+			drain();
+		}
+		return true;
+	}
+
+	/** Pass on everything held, and everything added from now on. */
+	public void open() {
+		open = true;
+		drain();
+	}
+
+	/** Hold candidates from now on, e.g. while a new remote description is set. */
+	public void hold() {
+		open = false;
+	}
+
+	/** Return the number of repeated candidates dropped. */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/** Return how long candidates waited between add() and the sink. */
+	public LatencyHistogram getWaits() {
+		return waits;
+	}
+
+	private void drain() {
+		do {
+			if (!draining.compareAndSet(false, true)) {
+				// The thread draining will pick up whatever we enqueued.
+				return;
+			}
+			try {
+				Entry entry;
+				while (open && (entry = queue.peek()) != null) {
+					waits.record(System.nanoTime() - entry.queuedNs);
+					sink.addCandidate(entry.candidate);
+					queue.poll();
+				}
+			} finally {
+				draining.set(false);
+			}
+			// Something may have been enqueued after our last peek, by a thread
+			// that saw us draining and left it to us.
+		} while (open && !queue.isEmpty());
+	}
+}
@@ -0,0 +1,450 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import java.util.ArrayList;
+
+/**
+ * Rewrites SDP in a single forward scan: per media type it can move preferred
+ * codecs to the front of the m= line, drop codecs (along with their
+ * rtpmap/fmtp/rtcp-fb lines), add fmtp parameters to a codec, and replace the
+ * b=AS bandwidth line.
+ * 
+ * Rules are keyed by the media token of the m= line ("audio", "video") and
+ * codecs by their rtpmap encoding, either the bare name ("VP8") or with the
+ * clock rate ("ISAC/16000"), matched case-insensitively. Sections without
+ * rules are copied through untouched.
+ * 
+ * Each instance reuses its scratch buffers across calls, so rewrite() doesn't
+ * allocate beyond its result; instances are therefore NOT thread-safe.
+ */
+public class SdpRewriter {
+	private static final int MAX_PAYLOAD_TYPE = 127;
+	private static final int NOT_PREFERRED = Integer.MAX_VALUE;
+
+	private static class MediaRules {
+		final String media;
+		final ArrayList<String> preferred = new ArrayList<String>();
+		final ArrayList<String> dropped = new ArrayList<String>();
+		// Parallel lists: extra fmtp parameters for each codec.
+		final ArrayList<String> parameterCodecs = new ArrayList<String>();
+		final ArrayList<String> parameters = new ArrayList<String>();
+		int bandwidthKbps = -1;
+
+		MediaRules(String media) {
+			this.media = media;
+		}
+	}
+
+	private final ArrayList<MediaRules> rules = new ArrayList<MediaRules>();
+
+	// Scratch state for rewrite(), reset for every m= section.
+	private final StringBuilder out = new StringBuilder();
+	private final StringBuilder section = new StringBuilder();
+	private final int[] payloadRank = new int[MAX_PAYLOAD_TYPE + 1];
+	private final boolean[] payloadDropped = new boolean[MAX_PAYLOAD_TYPE + 1];
+	// Index into MediaRules.parameters for each payload type that gets extra
+	// fmtp parameters, and where in |section| to insert an a=fmtp line for it
+	// if the SDP doesn't have one to append them to (-1 once handled).
+	private final int[] payloadParameters = new int[MAX_PAYLOAD_TYPE + 1];
+	private final int[] payloadFmtpInsertAt = new int[MAX_PAYLOAD_TYPE + 1];
+	private final StringBuilder fmtpLine = new StringBuilder();
+	private final int[] mLinePayloads = new int[MAX_PAYLOAD_TYPE + 1];
+	private int mLinePayloadCount;
+	private MediaRules sectionRules;
+	private boolean sectionBandwidthWritten;
+	// Offsets into the input of the current m= line: its start, the start and
+	// end of its <port>, the start of its <fmt> list, and the start and end of
+	// its line terminator.
+	private int mLineStart, mLinePortStart, mLinePortEnd, mLineFmtStart,
+			mLineEnd, mLineTerminatorEnd;
+
+	/**
+	 * Move |codec| to the front of |media|'s m= lines, after any codecs
+	 * preferred by earlier calls.
+	 */
+	public SdpRewriter preferCodec(String media, String codec) {
+		rulesFor(media).preferred.add(codec);
+		return this;
+	}
+
+	/**
+	 * Remove |codec| from |media|'s m= lines entirely. If that leaves a line
+	 * with no codecs, its stream is rejected with port 0.
+	 */
+	public SdpRewriter dropCodec(String media, String codec) {
+		rulesFor(media).dropped.add(codec);
+		return this;
+	}
+
+	/**
+	 * Append |parameters| (e.g. "x-google-max-bitrate=500") to the a=fmtp line
+	 * of |codec| in |media|'s sections, adding one if it has none.
+	 */
+	public SdpRewriter addCodecParameters(String media, String codec,
+			String parameters) {
+		MediaRules r = rulesFor(media);
+		r.parameterCodecs.add(codec);
+		r.parameters.add(parameters);
+		return this;
+	}
+
+	/**
+	 * Replace any b=AS line in |media|'s sections with one capping it to
+	 * |kbps|, or leave them alone if |kbps| is negative.
+	 */
+	public SdpRewriter setBandwidth(String media, int kbps) {
+		rulesFor(media).bandwidthKbps = kbps;
+		return this;
+	}
+
+	/** Whether rewrite() would ever change anything. */
+	public boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	private MediaRules rulesFor(String media) {
+		for (MediaRules r : rules) {
+			if (r.media.equals(media)) {
+				return r;
+			}
+		}
+		MediaRules r = new MediaRules(media);
+		rules.add(r);
+		return r;
+	}
+
+	/** Return |sdp| rewritten according to the configured rules. */
+	public String rewrite(CharSequence sdp) {
+		out.setLength(0);
+		rewrite(sdp, out);
+		return out.toString();
+	}
+
+	/** Append |sdp|, rewritten according to the configured rules, to |dst|. */
+	public void rewrite(CharSequence sdp, StringBuilder dst) {
+		sectionRules = null;
+		int length = sdp.length();
+		int lineStart = 0;
+		while (lineStart < length) {
+			int terminatorEnd = lineStart;
+			while (terminatorEnd < length && sdp.charAt(terminatorEnd) != '\n') {
+				++terminatorEnd;
+			}
+			int lineEnd = terminatorEnd;
+			if (terminatorEnd < length) {
+				++terminatorEnd; // include the '\n'
+			}
+			if (lineEnd > lineStart && sdp.charAt(lineEnd - 1) == '\r') {
+				--lineEnd;
+			}
+
+			if (startsWith(sdp, lineStart, lineEnd, "m=")) {
+				finishSection(sdp, dst);
+				startSection(sdp, lineStart, lineEnd, terminatorEnd);
+				if (sectionRules == null) {
+					dst.append(sdp, lineStart, terminatorEnd);
+				}
+			} else if (sectionRules == null) {
+				dst.append(sdp, lineStart, terminatorEnd);
+			} else {
+				rewriteSectionLine(sdp, lineStart, lineEnd, terminatorEnd);
+			}
+			lineStart = terminatorEnd;
+		}
+		finishSection(sdp, dst);
+	}
+
+	// Begin the m= section on [start, end); picks the rules that apply to it,
+	// if any, and parses the payload types in its <fmt> list.
+	private void startSection(CharSequence sdp, int start, int end,
+			int terminatorEnd) {
+		sectionRules = null;
+		int mediaEnd = indexOf(sdp, ' ', start, end);
+		if (mediaEnd < 0) {
+			return;
+		}
+		MediaRules r = null;
+		for (MediaRules candidate : rules) {
+			if (mediaEnd - start - 2 == candidate.media.length()
+					&& startsWith(sdp, start + 2, mediaEnd, candidate.media)) {
+				r = candidate;
+				break;
+			}
+		}
+		if (r == null) {
+			return;
+		}
+		// Format is: m=<media> <port> <proto> <fmt> ...
+		int portEnd = indexOf(sdp, ' ', mediaEnd + 1, end);
+		int protoEnd = portEnd < 0 ? -1 : indexOf(sdp, ' ', portEnd + 1, end);
+		if (protoEnd < 0) {
+			return;
+		}
+		mLinePayloadCount = 0;
+		int i = protoEnd + 1;
+		while (i < end) {
+			int tokenEnd = indexOf(sdp, ' ', i, end);
+			if (tokenEnd < 0) {
+				tokenEnd = end;
+			}
+			if (tokenEnd > i) {
+				int pt = parsePayloadType(sdp, i, tokenEnd);
+				if (pt < 0 || mLinePayloadCount == mLinePayloads.length) {
+					// e.g. an SCTP port; nothing here we know how to reorder.
+					return;
+				}
+				mLinePayloads[mLinePayloadCount++] = pt;
+			}
+			i = tokenEnd + 1;
+		}
+		for (int pt = 0; pt <= MAX_PAYLOAD_TYPE; ++pt) {
+			payloadRank[pt] = NOT_PREFERRED;
+			payloadDropped[pt] = false;
+			payloadParameters[pt] = -1;
+			payloadFmtpInsertAt[pt] = -1;
+		}
+		sectionRules = r;
+		sectionBandwidthWritten = false;
+		section.setLength(0);
+		mLineStart = start;
+		mLinePortStart = mediaEnd + 1;
+		mLinePortEnd = portEnd;
+		mLineFmtStart = protoEnd + 1;
+		mLineEnd = end;
+		mLineTerminatorEnd = terminatorEnd;
+	}
+
+	// Handle one non-m= line of a section that has rules, buffering it into
+	// |section| unless it's to be dropped.
+	private void rewriteSectionLine(CharSequence sdp, int start, int end,
+			int terminatorEnd) {
+		MediaRules r = sectionRules;
+		if (startsWith(sdp, start, end, "a=rtpmap:")) {
+			int ptStart = start + "a=rtpmap:".length();
+			int ptEnd = indexOf(sdp, ' ', ptStart, end);
+			int pt = ptEnd < 0 ? -1 : parsePayloadType(sdp, ptStart, ptEnd);
+			if (pt >= 0) {
+				for (int k = 0; k < r.dropped.size(); ++k) {
+					if (encodingMatches(sdp, ptEnd + 1, end, r.dropped.get(k))) {
+						payloadDropped[pt] = true;
+						return;
+					}
+				}
+				for (int k = 0; k < r.preferred.size(); ++k) {
+					if (encodingMatches(sdp, ptEnd + 1, end,
+							r.preferred.get(k))) {
+						payloadRank[pt] = Math.min(payloadRank[pt], k);
+						break;
+					}
+				}
+				for (int k = 0; k < r.parameterCodecs.size(); ++k) {
+					if (encodingMatches(sdp, ptEnd + 1, end,
+							r.parameterCodecs.get(k))) {
+						section.append(sdp, start, terminatorEnd);
+						payloadParameters[pt] = k;
+						payloadFmtpInsertAt[pt] = section.length();
+						return;
+					}
+				}
+			}
+		} else if (startsWith(sdp, start, end, "a=fmtp:")
+				|| startsWith(sdp, start, end, "a=rtcp-fb:")) {
+			int ptStart = indexOf(sdp, ':', start, end) + 1;
+			int ptEnd = indexOf(sdp, ' ', ptStart, end);
+			int pt = ptEnd < 0 ? -1 : parsePayloadType(sdp, ptStart, ptEnd);
+			if (pt >= 0 && payloadDropped[pt]) {
+				return;
+			}
+			if (pt >= 0 && payloadFmtpInsertAt[pt] >= 0
+					&& sdp.charAt(start + 2) == 'f') {
+				// The codec's own fmtp line: extend it instead of adding one.
+				section.append(sdp, start, end).append(';')
+						.append(r.parameters.get(payloadParameters[pt]))
+						.append(sdp, end, terminatorEnd);
+				payloadFmtpInsertAt[pt] = -1;
+				return;
+			}
+		} else if (r.bandwidthKbps >= 0 && startsWith(sdp, start, end, "b=AS:")) {
+			return;
+		}
+		section.append(sdp, start, terminatorEnd);
+		if (r.bandwidthKbps >= 0 && !sectionBandwidthWritten
+				&& startsWith(sdp, start, end, "c=")) {
+			// b= lines belong right after the section's c= line.
+			appendBandwidth(sdp, section);
+		}
+	}
+
+	// Write out the buffered section (if it had rules): the reordered m= line,
+	// then everything that followed it.
+	private void finishSection(CharSequence sdp, StringBuilder dst) {
+		if (sectionRules == null) {
+			return;
+		}
+		// Stable insertion sort by preference rank.
+		for (int i = 1; i < mLinePayloadCount; ++i) {
+			int pt = mLinePayloads[i];
+			int j = i - 1;
+			while (j >= 0 && payloadRank[mLinePayloads[j]] > payloadRank[pt]) {
+				mLinePayloads[j + 1] = mLinePayloads[j];
+				--j;
+			}
+			mLinePayloads[j + 1] = pt;
+		}
+		int kept = 0;
+		for (int i = 0; i < mLinePayloadCount; ++i) {
+			if (!payloadDropped[mLinePayloads[i]]) {
+				++kept;
+			}
+		}
+		if (kept == 0 && mLinePayloadCount > 0) {
+			// Every codec is dropped, and an m= line needs at least one. Reject
+			// the stream instead, with port 0 as RFC 3264 says, keeping its
+			// formats as they were.
+			dst.append(sdp, mLineStart, mLinePortStart).append('0')
+					.append(sdp, mLinePortEnd, mLineTerminatorEnd);
+		} else {
+			dst.append(sdp, mLineStart, mLineFmtStart);
+			boolean first = true;
+			for (int i = 0; i < mLinePayloadCount; ++i) {
+				int pt = mLinePayloads[i];
+				if (payloadDropped[pt]) {
+					continue;
+				}
+				if (!first) {
+					dst.append(' ');
+				}
+				dst.append(pt);
+				first = false;
+			}
+			dst.append(sdp, mLineEnd, mLineTerminatorEnd);
+		}
+		if (sectionRules.bandwidthKbps >= 0 && !sectionBandwidthWritten) {
+			// No c= line in this section; put b= right after the m= line.
+			appendBandwidth(sdp, dst);
+		}
+		insertMissingFmtpLines(sdp);
+		dst.append(section);
+		sectionRules = null;
+	}
+
+	// Add an a=fmtp line, right after its rtpmap line, for every codec that
+	// needed extra parameters but didn't have an fmtp line to append them to.
+	// Works from the end of |section| so earlier offsets stay valid.
+	private void insertMissingFmtpLines(CharSequence sdp) {
+		while (true) {
+			int pt = -1;
+			for (int i = 0; i <= MAX_PAYLOAD_TYPE; ++i) {
+				if (payloadFmtpInsertAt[i] >= 0
+						&& (pt < 0 || payloadFmtpInsertAt[i] > payloadFmtpInsertAt[pt])) {
+					pt = i;
+				}
+			}
+			if (pt < 0) {
+				return;
+			}
+			fmtpLine.setLength(0);
+			fmtpLine.append("a=fmtp:").append(pt).append(' ')
+					.append(sectionRules.parameters.get(payloadParameters[pt]));
+			if (mLineTerminatorEnd > mLineEnd) {
+				fmtpLine.append(sdp, mLineEnd, mLineTerminatorEnd);
+			} else {
+				fmtpLine.append("\r\n");
+			}
+			section.insert(payloadFmtpInsertAt[pt], fmtpLine);
+			payloadFmtpInsertAt[pt] = -1;
+		}
+	}
+
+	private void appendBandwidth(CharSequence sdp, StringBuilder dst) {
+		dst.append("b=AS:").append(sectionRules.bandwidthKbps);
+		if (mLineTerminatorEnd > mLineEnd) {
+			dst.append(sdp, mLineEnd, mLineTerminatorEnd);
+		} else {
+			dst.append("\r\n");
+		}
+		sectionBandwidthWritten = true;
+	}
+
+	// Whether the rtpmap encoding on [start, end), e.g. "ISAC/16000", is
+	// |codec|, either exactly or up to the '/' that starts its clock rate.
+	private static boolean encodingMatches(CharSequence sdp, int start,
+			int end, String codec) {
+		int n = codec.length();
+		if (end - start < n) {
+			return false;
+		}
+		for (int i = 0; i < n; ++i) {
+			if (Character.toUpperCase(sdp.charAt(start + i)) != Character
+					.toUpperCase(codec.charAt(i))) {
+				return false;
+			}
+		}
+		return start + n == end || sdp.charAt(start + n) == '/';
+	}
+
+	private static boolean startsWith(CharSequence sdp, int start, int end,
+			String prefix) {
+		int n = prefix.length();
+		if (end - start < n) {
+			return false;
+		}
+		for (int i = 0; i < n; ++i) {
+			if (sdp.charAt(start + i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOf(CharSequence sdp, char c, int start, int end) {
+		for (int i = start; i < end; ++i) {
+			if (sdp.charAt(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Parse the payload type on [start, end), or return -1 if it isn't one.
+	private static int parsePayloadType(CharSequence sdp, int start, int end) {
+		if (start >= end || end - start > 3) {
+			return -1;
+		}
+		int pt = 0;
+		for (int i = start; i < end; ++i) {
+			char c = sdp.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			pt = pt * 10 + (c - '0');
+		}
+		return pt <= MAX_PAYLOAD_TYPE ? pt : -1;
+	}
+}
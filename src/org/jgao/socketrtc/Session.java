@@ -27,30 +27,35 @@
 
 package org.jgao.socketrtc;
 
+import java.util.ArrayList;
 import java.util.EnumSet;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.appspot.apprtc.VideoStreamsView;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.webrtc.DataChannel;
 import org.webrtc.Logging;
 import org.webrtc.MediaConstraints;
 import org.webrtc.MediaStream;
 import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnection.IceServer;
 import org.webrtc.PeerConnectionFactory;
-import org.webrtc.StatsObserver;
-import org.webrtc.StatsReport;
-import org.webrtc.VideoCapturer;
 import org.webrtc.VideoRenderer;
 import org.webrtc.VideoRenderer.I420Frame;
-import org.webrtc.VideoSource;
-import org.webrtc.VideoTrack;
 
 import android.content.Context;
 import android.media.AudioManager;
@@ -61,31 +66,130 @@ import android.util.Log;
 import com.koushikdutta.async.http.AsyncHttpClient;
 import com.koushikdutta.async.http.socketio.Acknowledge;
 import com.koushikdutta.async.http.socketio.ConnectCallback;
+import com.koushikdutta.async.http.socketio.DisconnectCallback;
 import com.koushikdutta.async.http.socketio.EventCallback;
 import com.koushikdutta.async.http.socketio.SocketIOClient;
 
 public class Session {
 	private static final String TAG = "Session";
 
+	private static final String LOCAL_STREAM_ID = "local";
+
 	private final Context context;
-	private final VideoStreamsView vsv; // TODO extend this to more than one
+	private final CameraFinder cameraFinder;
+	// Renders every stream of this session, each as a tile keyed by the
+	// stream's id: LOCAL_STREAM_ID for ours, the peer id for each peer's.
+	private final VideoStreamsView vsv;
+
+	private volatile SignalingParameters sp;
+	// The signaling server's URL, or null once disconnect()ed.
+	private volatile String url;
+	// The live signaling connection, or null while (re)connecting.
+	private final AtomicReference<SocketIOClient> mSocket = new AtomicReference<SocketIOClient>();
 
-	private SignalingParameters sp;
-	private SocketIOClient mSocket;
-	private SocketIOEventHandler socketIOEventHandler = new SocketIOEventHandler();
+	// When signaling drops, PeerConnections stay up while it reconnects in
+	// the background, backing off exponentially between these delays so a
+	// blip reconnects quickly but a dead server isn't hammered.
+	private static final long RECONNECT_MIN_DELAY_MS = 500;
+	private static final long RECONNECT_MAX_DELAY_MS = 30000;
+	private final AtomicLong reconnectDelayMs = new AtomicLong(
+			RECONNECT_MIN_DELAY_MS);
+	private final AtomicBoolean reconnectScheduled = new AtomicBoolean(false);
+	// How long a peer that dropped off signaling has to say hello again from
+	// its new client id before it's taken to have left, and how long the
+	// server's hello for a newcomer waits in case it's one of them.
+	private static final long REJOIN_GRACE_MS = 1000;
+	// Peers (by session id) whose client id went away within the last
+	// REJOIN_GRACE_MS and that haven't said hello from a new one yet. Only
+	// touched on the signaling thread.
+	private final HashSet<String> rejoiningPeers = new HashSet<String>();
+	// Messages sent while signaling is down (e.g. an ICE restart offer), sent
+	// on reconnect. Bounded; the oldest are dropped first.
+	private static final int MAX_QUEUED_MESSAGES = 256;
+	private final LinkedBlockingQueue<JSONObject> queuedMessages = new LinkedBlockingQueue<JSONObject>(
+			MAX_QUEUED_MESSAGES);
+
+	// Remote participants keyed by their peer id (see SignalingDispatcher),
+	// which stays the same across their signaling reconnects.
+	// Lookups are lock-free; creation is serialized on the map itself so that
+	// each id only ever gets one Peer (and one native PeerConnection).
+	private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
 
 	// WebRTC stack objects that should exist for all PeerConnections for the
 	// duration of this session
-	private HashMap<String, Peer> peers = new HashMap<String, Peer>();
 	private PeerConnectionFactory pcFactory;
-	private VideoSource videoSource;
-	private boolean videoSourceStopped;
-	private MediaStream localMediaStream;
+	// Shared by every Peer, and kept across signaling reconnects.
+	private final LocalMedia localMedia;
 
 	private MediaConstraints sdpMediaConstraints;
+	// Per-peer overrides of sp.mediaPolicy, keyed like |peers|.
+	private final ConcurrentHashMap<String, MediaPolicy> peerMediaPolicies = new ConcurrentHashMap<String, MediaPolicy>();
+	// Gets the data channels peers open to us; they're refused while null.
+	private volatile PeerDataChannel.Listener dataChannelListener;
+
+	// Background thread that parses and dispatches signaling messages, in
+	// order, and runs delayed signaling work such as flushing batched ICE
+	// candidates. None of this has any business on the UI thread.
+	private final ScheduledExecutorService signalingExecutor = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "Signaling");
+				}
+			});
+	private final SignalingDispatcher signalingDispatcher = new SignalingDispatcher(
+			signalingExecutor, new SignalingListener(),
+			new BinarySignalingCodec());
 
-	// Synchronize on quit[0] to avoid teardown-related crashes.
-	private final Boolean[] quit = new Boolean[] { false };
+	// How often every peer's call quality is sampled.
+	private static final long STATS_PERIOD_MS = 2000;
+	private final StatsCollector statsCollector = new StatsCollector(peers);
+
+	// Steps local capture resolution and frame rate down and up with the
+	// uplink to the worst peer. Each step recreates the local video track,
+	// which each Peer has to renegotiate to send: the initiator offers, and
+	// the other end asks it to (see Peer). Off by default until that has
+	// been exercised against real peers.
+	private volatile boolean adaptiveVideo = false;
+	private final VideoQualityController videoQuality = new VideoQualityController(
+			VideoQualityController.DEFAULT_LADDER, 1);
+	private final StatsCollector.Listener videoQualityListener = new StatsCollector.Listener() {
+		public void onStats(String peerId, PeerStats stats) {
+			if (!adaptiveVideo || stats.size() == 0) {
+				return;
+			}
+			final VideoQualityController.Level level = videoQuality.onStats(
+					peerId, stats.getTimestampMs(0),
+					stats.getLatest(PeerStats.Metric.AVAILABLE_SEND_KBPS),
+					stats.getLatest(PeerStats.Metric.SEND_LOSS_PERCENT));
+			if (level == null) {
+				return;
+			}
+			try {
+				signalingExecutor.execute(new Runnable() {
+					public void run() {
+						setCaptureLevel(level);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				Log.w(TAG, "Not changing capture level after shutdown");
+			}
+		}
+	};
+
+	// Lifecycle: ACTIVE until disconnect(), CLOSING while the teardown
+	// pipeline runs, then CLOSED. Only ACTIVE sessions add peers.
+	private static enum State {
+		ACTIVE, CLOSING, CLOSED
+	}
+
+	private final AtomicReference<State> state = new AtomicReference<State>(
+			State.ACTIVE);
+	private final CountDownLatch closed = new CountDownLatch(1);
+	// Bounds on each teardown stage; a stage that overruns is abandoned, and
+	// whatever depends on it leaked rather than disposed out from under it.
+	private static final long SIGNALING_DRAIN_TIMEOUT_MS = 1000;
+	private static final long PEER_CLOSE_TIMEOUT_MS = 2000;
+	private static final int MAX_TEARDOWN_THREADS = 4;
 
 	/**
 	 * play around with ways to execute things on the UI thread
@@ -112,48 +216,140 @@ public class Session {
 		}
 	}
 
-	private class SocketIOEventHandler implements EventCallback {
-		private Handler mHandler = new Handler(Looper.getMainLooper());
+	// Runs on the signaling thread: route each message to the Peer that sent
+	// it. Nothing here touches the UI.
+	private class SignalingListener implements SignalingDispatcher.Listener {
+		@Override
+		public void onHello(String from, JSONObject data, Acknowledge ack) {
+			Log.d(TAG, "hello from " + from);
+			// If it was reconnecting, it's back.
+			rejoiningPeers.remove(from);
+			onHelloEvent(from, data, ack);
+		}
 
 		@Override
-		public void onEvent(final JSONArray jsonArray,
-				final Acknowledge acknowledge) {
-			mHandler.post(new Runnable() {
-				@Override
-				public void run() {
-					Log.d(TAG, "SocketIOEventHandler: " + jsonArray);
-					JSONObject data;
-					String type;
-					try {
-						data = jsonArray.getJSONObject(0);
-						type = data.getString("type");
-					} catch (JSONException e) {
-						Log.e(TAG,
-								"Error geting JSONObject 'data' or field 'data.type' from jsonArray: "
-										+ jsonArray);
-						return;
-					}
+		public void onOffer(String from, JSONObject data, Acknowledge ack) {
+			Log.d(TAG, "offer from " + from);
+			// An offer is the first thing we hear from a peer that initiates,
+			// so it creates the Peer if necessary.
+			Peer peer = getOrAddPeer(from, false);
+			if (peer != null) {
+				peer.onSdpEvent(data, ack);
+			}
+		}
 
-					// dispatch appropriately TODO not all to the same peer
-					if ("hello".equals(type)) {
-						onHelloEvent(data, acknowledge);
-					} else if ("candidate".equals(type)) {
-						// onCandidateEvent(data, acknowledge);
-						peers.get("asdf").onCandidateEvent(data, acknowledge);
-					} else if ("offer".equalsIgnoreCase(type)) {
-						// onSdpEvent(data, acknowledge);
-						peers.get("asdf").onSdpEvent(data, acknowledge);
-					} else if ("answer".equalsIgnoreCase(type)) {
-						// onSdpEvent(data, acknowledge);
-						peers.get("asdf").onSdpEvent(data, acknowledge);
+		@Override
+		public void onAnswer(String from, JSONObject data, Acknowledge ack) {
+			Log.d(TAG, "answer from " + from);
+			Peer peer = getPeer(from, "answer");
+			if (peer != null) {
+				peer.onSdpEvent(data, ack);
+			}
+		}
+
+		@Override
+		public void onCandidates(String from, JSONObject data, Acknowledge ack) {
+			Peer peer = getPeer(from, "candidates");
+			if (peer != null) {
+				peer.onCandidateEvent(data, ack);
+			}
+		}
+
+		@Override
+		public void onRenegotiate(String from) {
+			Log.d(TAG, "renegotiate from " + from);
+			Peer peer = getPeer(from, "renegotiate");
+			if (peer != null) {
+				peer.onRenegotiateEvent();
+			}
+		}
+
+		@Override
+		public void onBye(final String from) {
+			Log.d(TAG, "bye from " + from);
+			final String route = signalingDispatcher.getRoute(from);
+			if (route.equals(from)) {
+				removePeer(from);
+				return;
+			}
+			// A peer we know by its session id may just be reconnecting;
+			// let it go only if it doesn't show up under a new client id.
+			rejoiningPeers.add(from);
+			try {
+				signalingExecutor.schedule(new Runnable() {
+					public void run() {
+						rejoiningPeers.remove(from);
+						if (route.equals(signalingDispatcher.getRoute(from))) {
+							removePeer(from);
+						}
 					}
+				}, REJOIN_GRACE_MS, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// Shutting down; tearDown() removes every peer anyway.
+			}
+		}
+
+		@Override
+		public void onBadMessage(JSONArray message, String reason) {
+			Log.e(TAG, "Error dispatching signaling message (" + reason
+					+ "): " + message);
+		}
+	}
 
+	/**
+	 * A "hello" is sent once by the signaling server when we join, and again
+	 * for every participant that joins after us. The first one brings up the
+	 * local media stack; any hello asking us to make an offer also adds a Peer
+	 * for its sender, right away unless a peer is rejoining. After a
+	 * reconnect, we say hello to our peers ourselves, so they know our new
+	 * client id.
+	 */
+	public void onHelloEvent(String from, JSONObject data, Acknowledge ack) {
+		boolean makeOffer = data.optBoolean("makeOffer", false);
+		if (sp == null) {
+			parseSignalingParameters(data);
+			if (sp == null) {
+				return;
+			}
+			startWebRTCStack();
+		} else if (!data.has("from") && data.has("clientId")) {
+			sayHelloAgain();
+		}
+		if (!makeOffer) {
+			return;
+		}
+		if (rejoiningPeers.isEmpty()) {
+			getOrAddPeer(from, true);
+			return;
+		}
+		// The server's hello for a peer that's only reconnecting comes before
+		// the peer's own, which tells us who it is; give that time to arrive
+		// rather than take it for a newcomer.
+		final String clientId = from;
+		try {
+			signalingExecutor.schedule(new Runnable() {
+				public void run() {
+					getOrAddPeer(signalingDispatcher.getPeerId(clientId), true);
 				}
-			});
+			}, REJOIN_GRACE_MS, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			Log.w(TAG, "Not adding peer " + clientId + " after disconnect");
 		}
 	}
 
-	public void onHelloEvent(JSONObject data, Acknowledge ack) {
+	// Tell each peer our new client id, which every message carries.
+	private void sayHelloAgain() {
+		for (String id : peers.keySet()) {
+			try {
+				sendMessage(id, false, new JSONObject().put("type", "hello"));
+			} catch (JSONException e) {
+				Log.e(TAG, "Error saying hello to " + id);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void parseSignalingParameters(JSONObject data) {
 		sdpMediaConstraints = new MediaConstraints();
 		sdpMediaConstraints.mandatory.add(new MediaConstraints.KeyValuePair(
 				"OfferToReceiveAudio", "true"));
@@ -173,8 +369,9 @@ public class Session {
 			addTurnIfNecessary(iceServers);
 
 			MediaConstraints pcConstraints = new MediaConstraints();
+			// SCTP data channels run over DTLS.
 			pcConstraints.optional.add(new MediaConstraints.KeyValuePair(
-					"RtpDataChannels", "true"));
+					"DtlsSrtpKeyAgreement", "true"));
 			pcConstraints.mandatory.add(new MediaConstraints.KeyValuePair(
 					"OfferToReceiveVideo", "true"));
 			pcConstraints.mandatory.add(new MediaConstraints.KeyValuePair(
@@ -183,11 +380,15 @@ public class Session {
 			MediaConstraints videoConstraints = new MediaConstraints();
 			MediaConstraints audioConstraints = new MediaConstraints();
 
-			sp = new SignalingParameters(iceServers, initiator, pcConstraints,
-					videoConstraints, audioConstraints);
+			MediaPolicy mediaPolicy = MediaPolicy.DEFAULT;
+			JSONObject mediaPolicyJSON = data.optJSONObject("mediaPolicy");
+			if (mediaPolicyJSON != null) {
+				mediaPolicy = MediaPolicy.fromJSON(mediaPolicyJSON, mediaPolicy);
+			}
 
-			// Start publishing both video and audio
-			startWebRTCStack();
+			sp = new SignalingParameters(iceServers, initiator, pcConstraints,
+					videoConstraints, audioConstraints,
+					SignalingParameters.DEFAULT_CANDIDATE_BATCH_MS, mediaPolicy);
 		} catch (JSONException e) {
 			Log.e(TAG, "Error downloading signaling parameters!");
 			e.printStackTrace();
@@ -197,72 +398,136 @@ public class Session {
 	/**
 	 * This is where the WebRTC stuff kicks off!
 	 * 
-	 * Create a local media stream from video track and audio track, create a
-	 * new Peer for each other peer I'm connected to, (each of these Peers has a
-	 * PeerConnection object)
+	 * Create a local media stream from video track and audio track. Peers (each
+	 * with its own PeerConnection object) are added lazily as other
+	 * participants say hello or send us offers, and all of them share this one
+	 * local stream.
 	 * 
 	 * */
 	private void startWebRTCStack() {
-		// TODO only restart WebRTC stack if not already connected?
-		// (maybe this was a RECONNECT to the socketio server?)
+		// Local media outlives reconnects to the socketio server, so this
+		// only ever opens the camera once per session.
 
-		// createDataChannelToRegressionTestBug2302(pc);
 		startPublishing(true, true);
-
-		// Add a Peer, which kicks off PeerConnection
-		addPeer("the-only-peer", 0);
+		statsCollector.start(STATS_PERIOD_MS);
 	}
 
+	/**
+	 * Create the local stream, opening the camera and microphone as asked, and
+	 * start rendering the camera locally. A no-op once the stream exists, e.g.
+	 * because warmUp() already created it. Runs on the signaling thread.
+	 */
 	public void startPublishing(boolean publishVideo, boolean publishAudio) {
 		// Uncomment to get ALL WebRTC tracing and SENSITIVE libjingle logging.
 		// NOTE: this _must_ happen while |pcFactory| is alive!
 		// enableWebRtcLogging();
 
-		// enableVideoStatsLogger();
-
-		// Add local video and audio TRACKS to local media STREAM
-		if (publishVideo || publishAudio) {
-			Log.d(TAG, "Creating local video and audio source...");
-			localMediaStream = pcFactory.createLocalMediaStream("ARDAMS");
+		if (!publishVideo && !publishAudio) {
+			return;
+		}
+		MediaConstraints videoConstraints = null;
+		if (publishVideo) {
+			videoConstraints = getVideoConstraints();
+			if (adaptiveVideo) {
+				// Start at the level the controller steps from.
+				videoConstraints = constrainToLevel(videoConstraints,
+						videoQuality.getLevel());
+			}
+		}
+		if (videoConstraints != null) {
+			// render my video stream locally on my screen
+			vsv.addStream(LOCAL_STREAM_ID);
+		}
+		if (!localMedia.start(videoConstraints,
+				publishAudio ? getAudioConstraints() : null)) {
+			Log.d(TAG, "Local media already started");
+		}
+	}
 
-			// Add video, subject to constraints
-			if (publishVideo && sp.videoConstraints != null) {
-				VideoCapturer capturer = getVideoCapturer();
-				videoSource = pcFactory.createVideoSource(capturer,
-						sp.videoConstraints);
-				VideoTrack videoTrack = pcFactory.createVideoTrack("ARDAMSv0",
-						videoSource);
+	/**
+	 * Start local capture and preview now, in parallel with connect(), rather
+	 * than once the server's hello arrives; the first Peer then attaches to a
+	 * stream that's already flowing. Local media is unconstrained until then,
+	 * just as the server's parameters currently leave it, except for the
+	 * adaptive video level if that's on.
+	 */
+	public void warmUp() {
+		try {
+			signalingExecutor.execute(new Runnable() {
+				public void run() {
+					Log.d(TAG, "Warming up local media");
+					startPublishing(true, true);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Log.w(TAG, "Not warming up after shutdown");
+		}
+	}
 
-				// render my video stream locally on my screen
-				videoTrack.addRenderer(new VideoRenderer(new VideoCallbacks(
-						vsv, VideoStreamsView.Endpoint.LOCAL)));
+	// Capture constraints: the server's once it has said hello, none before.
+	private MediaConstraints getVideoConstraints() {
+		SignalingParameters sp = this.sp;
+		return sp != null ? sp.videoConstraints : new MediaConstraints();
+	}
 
-				localMediaStream.addTrack(videoTrack);
-			}
+	private MediaConstraints getAudioConstraints() {
+		SignalingParameters sp = this.sp;
+		return sp != null ? sp.audioConstraints : new MediaConstraints();
+	}
 
-			// Add audio, subject to constraints
-			if (publishAudio && sp.audioConstraints != null) {
-				localMediaStream.addTrack(pcFactory.createAudioTrack(
-						"ARDAMSa0",
-						pcFactory.createAudioSource(sp.audioConstraints)));
+	/**
+	 * Let the uplink's bandwidth estimate and loss step the local capture
+	 * resolution and frame rate down and back up.
+	 */
+	public synchronized void setAdaptiveVideo(boolean enabled) {
+		if (adaptiveVideo == enabled) {
+			return;
+		}
+		adaptiveVideo = enabled;
+		if (enabled) {
+			statsCollector.addListener(videoQualityListener);
+			// Bring capture already under way to the controller's level; a
+			// no-op if it hasn't started, as startPublishing() applies it.
+			try {
+				signalingExecutor.execute(new Runnable() {
+					public void run() {
+						setCaptureLevel(videoQuality.getLevel());
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Shutting down; there's no capture left to adapt.
 			}
+		} else {
+			statsCollector.removeListener(videoQualityListener);
 		}
 	}
 
-	private EventCallback onDisconnectEvent = new EventCallback() {
-		@Override
-		public void onEvent(final JSONArray arg, Acknowledge ack) {
-			Log.d(TAG, "socket received message: " + arg);
-			runOnUiThread(new Runnable() {
-				public void run() {
-					// does this get called again even when we initialize the
-					// disconnect?
-					Log.d(TAG, "onDisconnectEvent");
-					disconnect();
-				}
-			});
+	// Reopen the camera capped at |level|.
+	private void setCaptureLevel(VideoQualityController.Level level) {
+		MediaConstraints videoConstraints = getVideoConstraints();
+		if (videoConstraints == null) {
+			return;
 		}
-	};
+		Log.d(TAG, "Capturing at " + level);
+		localMedia.setVideoConstraints(constrainToLevel(videoConstraints,
+				level));
+	}
+
+	// Return a copy of |videoConstraints| capped at |level|.
+	private static MediaConstraints constrainToLevel(
+			MediaConstraints videoConstraints,
+			VideoQualityController.Level level) {
+		MediaConstraints constraints = new MediaConstraints();
+		constraints.mandatory.addAll(videoConstraints.mandatory);
+		constraints.optional.addAll(videoConstraints.optional);
+		constraints.mandatory.add(new MediaConstraints.KeyValuePair(
+				"maxWidth", Integer.toString(level.maxWidth)));
+		constraints.mandatory.add(new MediaConstraints.KeyValuePair(
+				"maxHeight", Integer.toString(level.maxHeight)));
+		constraints.mandatory.add(new MediaConstraints.KeyValuePair(
+				"maxFrameRate", Integer.toString(level.maxFrameRate)));
+		return constraints;
+	}
 
 	private void addTurnIfNecessary(LinkedList<IceServer> iceServers) {
 		// Check if there is a TURN server included in the ICE servers list
@@ -285,6 +550,7 @@ public class Session {
 	public Session(Context context, VideoStreamsView vsv) {
 		this.context = context;
 		this.vsv = vsv;
+		this.cameraFinder = new CameraFinder(context);
 
 		// initializeAndroidGlobals takes a Context, but is untyped to allow
 		// building on different platforms
@@ -292,6 +558,8 @@ public class Session {
 				"Failed to initializeAndroidGlobals");
 		pcFactory = new PeerConnectionFactory();
 		Log.d(TAG, "created peer connection factory.");
+		localMedia = new LocalMedia(pcFactory, cameraFinder,
+				new VideoCallbacks(vsv, LOCAL_STREAM_ID));
 
 		AudioManager audioManager = ((AudioManager) context
 				.getSystemService(Context.AUDIO_SERVICE));
@@ -304,94 +572,207 @@ public class Session {
 		audioManager.setSpeakerphoneOn(!isWiredHeadsetOn);
 	}
 
+	/**
+	 * Connect to the signaling server at |url|, and stay connected: whenever
+	 * the connection drops or fails, reconnect with exponential backoff until
+	 * disconnect().
+	 */
 	public void connect(final String url) {
+		this.url = url;
+		openSocket();
+	}
+
+	private void openSocket() {
+		String url = this.url;
+		if (url == null) {
+			return;
+		}
 		SocketIOClient.connect(AsyncHttpClient.getDefaultInstance(), url,
 				new ConnectCallback() {
 					@Override
 					public void onConnectCompleted(Exception ex,
-							SocketIOClient socket) {
+							final SocketIOClient socket) {
 						if (ex != null) {
 							Log.e(TAG, "Exception on SocketIOClient connect.");
 							ex.printStackTrace();
+							scheduleReconnect();
+							return;
+						}
+						if (state.get() != State.ACTIVE) {
+							// disconnect()ed while connecting.
+							socket.disconnect();
 							return;
 						}
 						Log.d(TAG, "SocketIOClient connected.");
-						mSocket = socket;
+						reconnectDelayMs.set(RECONNECT_MIN_DELAY_MS);
 
 						// Register event handlers
-						mSocket.on("disconnect", onDisconnectEvent);
-						mSocket.on("message", socketIOEventHandler);
+						socket.on("disconnect", new EventCallback() {
+							@Override
+							public void onEvent(JSONArray arg, Acknowledge ack) {
+								Log.d(TAG, "onDisconnectEvent: " + arg);
+								onSignalingLost(socket);
+							}
+						});
+						socket.setDisconnectCallback(new DisconnectCallback() {
+							@Override
+							public void onDisconnect(Exception e) {
+								Log.d(TAG, "SocketIOClient disconnected: " + e);
+								onSignalingLost(socket);
+							}
+						});
+						socket.on("message", signalingDispatcher);
+						mSocket.set(socket);
+						if (state.get() != State.ACTIVE
+								&& mSocket.compareAndSet(socket, null)) {
+							// disconnect()ed since the check above, too late
+							// for tearDown() to see |socket|; it's ours to
+							// close.
+							socket.disconnect();
+							return;
+						}
+						sendQueuedMessages(socket);
 					}
 				});
 	}
 
+	// |socket| dropped. Leave the peers be, and reconnect in the background.
+	// Only the first report of the live socket's loss counts.
+	private void onSignalingLost(SocketIOClient socket) {
+		if (mSocket.compareAndSet(socket, null)) {
+			scheduleReconnect();
+		}
+	}
+
+	private void scheduleReconnect() {
+		if (url == null || !reconnectScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		long delayMs = reconnectDelayMs.get();
+		reconnectDelayMs.set(Math.min(delayMs * 2, RECONNECT_MAX_DELAY_MS));
+		Log.d(TAG, "Reconnecting to signaling in " + delayMs + "ms");
+		try {
+			signalingExecutor.schedule(new Runnable() {
+				public void run() {
+					reconnectScheduled.set(false);
+					openSocket();
+				}
+			}, delayMs, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			reconnectScheduled.set(false);
+		}
+	}
+
 	/**
-	 * Disconnect from the signaling channel
+	 * Leave the room and dispose of everything, without blocking the caller:
+	 * signaling stops taking new work here, and the rest (see tearDown())
+	 * happens on a teardown thread. Idempotent; see awaitDisconnected() to wait
+	 * for it.
 	 */
 	public void disconnect() {
-		// Disconnect from remote resources and dispose of local resources
-		synchronized (quit[0]) {
-			if (quit[0]) {
-				return;
-			}
-			quit[0] = true;
-
-			// dispose of Peers
-			// this iteration may not be thread safe, btw
-			for (String id : peers.keySet()) {
-				removePeer(id);
-			}
-			if (mSocket != null) {
-				mSocket.disconnect();
-				mSocket = null;
-			}
-			if (videoSource != null) {
-				// TODO crashes here on exit if no other connection? does it?
-				videoSource.dispose();
-				videoSource = null;
-			}
-			if (pcFactory != null) {
-				pcFactory.dispose();
-				pcFactory = null;
-			}
-			// activity.finish();
+		if (!state.compareAndSet(State.ACTIVE, State.CLOSING)) {
+			return;
 		}
+		Log.d(TAG, "Disconnecting");
+		url = null;
+		statsCollector.stop();
+		// Lets the signaling work already queued (e.g. candidates on their
+		// way out) finish; tearDown() waits for it, then cuts the socket.
+		signalingExecutor.shutdown();
+		Thread teardown = new Thread(new Runnable() {
+			public void run() {
+				tearDown();
+			}
+		}, "Teardown");
+		teardown.setDaemon(true);
+		teardown.start();
 	}
 
 	/**
-	 * Cycle through likely device names for the camera and return the first
-	 * capturer that works, or crash if none do.
-	 * 
-	 * @return the first VideoCapturer that works
+	 * Wait up to |timeoutMs| for disconnect() to finish tearing down; returns
+	 * whether it did.
 	 */
-	private VideoCapturer getVideoCapturer() {
-		String[] cameraFacing = { "front", "back" };
-		int[] cameraIndex = { 0, 1 };
-		int[] cameraOrientation = { 0, 90, 180, 270 };
-		for (String facing : cameraFacing) {
-			for (int index : cameraIndex) {
-				for (int orientation : cameraOrientation) {
-					String name = "Camera " + index + ", Facing " + facing
-							+ ", Orientation " + orientation;
-					VideoCapturer capturer = VideoCapturer.create(name);
-					if (capturer != null) {
-						Log.d(TAG, "Using camera: " + name);
-						return capturer;
-					}
+	public boolean awaitDisconnected(long timeoutMs)
+			throws InterruptedException {
+		return closed.await(timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	// The teardown pipeline, each stage bounded in time: drain signaling and
+	// close the socket, close every peer's PeerConnection in parallel, then
+	// dispose of local media and the factory, which must outlive them all.
+	private void tearDown() {
+		long startNs = System.nanoTime();
+		boolean clean = true;
+		try {
+			try {
+				if (!signalingExecutor.awaitTermination(
+						SIGNALING_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+					Log.w(TAG, "Signaling thread still busy; tearing down "
+							+ "anyway");
+					signalingExecutor.shutdownNow();
+				}
+			} finally {
+				SocketIOClient socket = mSocket.getAndSet(null);
+				if (socket != null) {
+					socket.disconnect();
 				}
+				queuedMessages.clear();
 			}
+
+			ArrayList<String> ids;
+			synchronized (peers) {
+				// getOrAddPeer() checks |state| under this lock, so no peer can
+				// be added after this snapshot.
+				ids = new ArrayList<String>(peers.keySet());
+			}
+			if (!ids.isEmpty()) {
+				ExecutorService pool = Executors.newFixedThreadPool(
+						Math.min(ids.size(), MAX_TEARDOWN_THREADS),
+						new ThreadFactory() {
+							public Thread newThread(Runnable r) {
+								Thread thread = new Thread(r, "PeerTeardown");
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+				for (final String id : ids) {
+					pool.execute(new Runnable() {
+						public void run() {
+							removePeer(id);
+						}
+					});
+				}
+				pool.shutdown();
+				clean = pool.awaitTermination(PEER_CLOSE_TIMEOUT_MS,
+						TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			clean = false;
 		}
-		throw new RuntimeException("Failed to open capturer");
+
+		if (clean) {
+			// The peers gave back theirs; this disposes of it all.
+			localMedia.release();
+			pcFactory.dispose();
+			pcFactory = null;
+		} else {
+			// Disposing of these under a live PeerConnection would crash.
+			Log.e(TAG, "Peers failed to close in time; leaking local media "
+					+ "and the PeerConnectionFactory");
+		}
+		state.set(State.CLOSED);
+		closed.countDown();
+		Log.d(TAG, "Disconnected in " + (System.nanoTime() - startNs) / 1000000
+				+ "ms");
 	}
 
 	// Implementation detail: bridge the VideoRenderer.Callbacks interface to
 	// the VideoStreamsView implementation.
 	private class VideoCallbacks implements VideoRenderer.Callbacks {
 		private final VideoStreamsView view;
-		private final VideoStreamsView.Endpoint stream;
+		private final String stream;
 
-		public VideoCallbacks(VideoStreamsView view,
-				VideoStreamsView.Endpoint stream) {
+		public VideoCallbacks(VideoStreamsView view, String stream) {
 			this.view = view;
 			this.stream = stream;
 		}
@@ -418,54 +799,6 @@ public class Session {
 		}
 	}
 
-	// Mangle SDP to prefer ISAC/16000 over any other audio codec.
-	private String preferISAC(String sdpDescription) {
-		String[] lines = sdpDescription.split("\n");
-		int mLineIndex = -1;
-		String isac16kRtpMap = null;
-		Pattern isac16kPattern = Pattern
-				.compile("^a=rtpmap:(\\d+) ISAC/16000[\r]?$");
-		for (int i = 0; (i < lines.length)
-				&& (mLineIndex == -1 || isac16kRtpMap == null); ++i) {
-			if (lines[i].startsWith("m=audio ")) {
-				mLineIndex = i;
-				continue;
-			}
-			Matcher isac16kMatcher = isac16kPattern.matcher(lines[i]);
-			if (isac16kMatcher.matches()) {
-				isac16kRtpMap = isac16kMatcher.group(1);
-				continue;
-			}
-		}
-		if (mLineIndex == -1) {
-			Log.d(TAG, "No m=audio line, so can't prefer iSAC");
-			return sdpDescription;
-		}
-		if (isac16kRtpMap == null) {
-			Log.d(TAG, "No ISAC/16000 line, so can't prefer iSAC");
-			return sdpDescription;
-		}
-		String[] origMLineParts = lines[mLineIndex].split(" ");
-		StringBuilder newMLine = new StringBuilder();
-		int origPartIndex = 0;
-		// Format is: m=<media> <port> <proto> <fmt> ...
-		newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-		newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-		newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-		newMLine.append(isac16kRtpMap).append(" ");
-		for (; origPartIndex < origMLineParts.length; ++origPartIndex) {
-			if (!origMLineParts[origPartIndex].equals(isac16kRtpMap)) {
-				newMLine.append(origMLineParts[origPartIndex]).append(" ");
-			}
-		}
-		lines[mLineIndex] = newMLine.toString();
-		StringBuilder newSdpDescription = new StringBuilder();
-		for (String line : lines) {
-			newSdpDescription.append(line).append("\n");
-		}
-		return newSdpDescription.toString();
-	}
-
 	// get ALL WebRTC tracing and SENSITIVE libjingle logging.
 	// NOTE: this _must_ happen while |pcFactory| is alive!
 	private void enableWebRtcLogging() {
@@ -476,101 +809,253 @@ public class Session {
 				Logging.Severity.LS_SENSITIVE);
 	}
 
-	// This is a recurring runnable on the VideoStreamView thread.
-	private void enableVideoStatsLogger(String id) {
-		Log.d(TAG, "Enabling stats logger...");
-		{
-			final PeerConnection finalPC = peers.get(id).pc;
-			final Runnable repeatedStatsLogger = new Runnable() {
-				public void run() {
-					synchronized (quit[0]) {
-						if (quit[0]) {
-							return;
-						}
-						final Runnable runnableThis = this;
-						boolean success = finalPC.getStats(new StatsObserver() {
-							public void onComplete(StatsReport[] reports) {
-								for (StatsReport report : reports) {
-									Log.d(TAG, "Stats: " + report.toString());
-								}
-								vsv.postDelayed(runnableThis, 10000);
-							}
-						}, null);
-						if (!success) {
-							throw new RuntimeException(
-									"getStats() return false!");
-						}
-					}
-				}
-			};
-			vsv.postDelayed(repeatedStatsLogger, 10000);
-		}
-	}
-
-	// Just for fun (and to regression-test bug 2302) make sure that
-	// DataChannels can be created, queried, and disposed.
-	private static void createDataChannelToRegressionTestBug2302(
-			PeerConnection pc) {
-		DataChannel dc = pc
-				.createDataChannel("dcLabel", new DataChannel.Init());
-		abortUnless("dcLabel".equals(dc.label()), "WTF?");
-		dc.close();
-		dc.dispose();
-	}
-
 	public void onPause() {
 		vsv.onPause();
-		if (videoSource != null) {
-			videoSource.stop();
-			videoSourceStopped = true;
-		}
+		localMedia.pause();
 	}
 
 	public void onResume() {
 		vsv.onResume();
-		if (videoSource != null && videoSourceStopped) {
-			videoSource.restart();
-		}
+		localMedia.resume();
 	}
 
-	public void onPeerAddedStream(final MediaStream stream) {
+	public void onPeerAddedStream(String id, final MediaStream stream) {
 		Log.d(TAG, "PeerConnection.Observer.onAddStream");
 		abortUnless(stream.audioTracks.size() <= 1
 				&& stream.videoTracks.size() <= 1, "Weird-looking stream: "
 				+ stream);
 
 		if (stream.videoTracks.size() == 1) {
+			vsv.addStream(id);
 			stream.videoTracks.get(0).addRenderer(
-					new VideoRenderer(new VideoCallbacks(vsv,
-							VideoStreamsView.Endpoint.REMOTE)));
+					new VideoRenderer(new VideoCallbacks(vsv, id)));
+			updateVideoLayout();
 		}
 	}
+
+	public void onPeerRemovedStream(String id, final MediaStream stream) {
+		vsv.removeStream(id);
+		updateVideoLayout();
+	}
+
+	// One remote peer gets the whole screen; any more share it in a grid.
+	private void updateVideoLayout() {
+		vsv.setLayout(peers.size() > 1 ? VideoStreamsView.Layout.GRID
+				: VideoStreamsView.Layout.ACTIVE_SPEAKER);
+	}
 	
+	/**
+	 * Return the collector sampling every peer's call quality, to listen to or
+	 * query. It runs while the WebRTC stack is up.
+	 */
+	public StatsCollector getStatsCollector() {
+		return statsCollector;
+	}
+
+	ScheduledExecutorService getSignalingExecutor() {
+		return signalingExecutor;
+	}
+
+	/**
+	 * Send |data| to the peer |to| only, or to everyone in the room if
+	 * |broadcast| is set. Peers should always address their own remote end;
+	 * broadcasts are only for messages that concern the whole room.
+	 */
 	public void sendMessage(String to, boolean broadcast, JSONObject data)
 			throws JSONException {
 		// TODO copy data instead of modifying it?
+		if (SignalingDispatcher.DEFAULT_PEER_ID.equals(to)) {
+			// The server never told us who this peer is, so it can't route to
+			// it; in a two-party room a broadcast reaches exactly that peer.
+			broadcast = true;
+		}
 		data.put("to", to);
 		data.put("broadcast", broadcast);
-		mSocket.emit("message", new JSONArray().put(data));
+		SocketIOClient socket = mSocket.get();
+		if (socket == null) {
+			Log.d(TAG, "Signaling down; queueing " + data.optString("type"));
+			while (!queuedMessages.offer(data)) {
+				queuedMessages.poll();
+			}
+			return;
+		}
+		emitMessage(socket, data);
+	}
+
+	// Send what was queued while signaling was down, in order.
+	private void sendQueuedMessages(SocketIOClient socket) {
+		JSONObject data;
+		while ((data = queuedMessages.poll()) != null) {
+			try {
+				emitMessage(socket, data);
+			} catch (JSONException e) {
+				Log.e(TAG, "Error sending queued message!");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void emitMessage(SocketIOClient socket, JSONObject data)
+			throws JSONException {
+		// Stamped and routed on sending, since a reconnect on either end may
+		// have changed the client ids.
+		String selfId = signalingDispatcher.getSelfId();
+		if (selfId != null) {
+			data.put("from", selfId);
+		}
+		data.put(SignalingDispatcher.SESSION_FIELD,
+				signalingDispatcher.getSessionId());
+		String to = data.optString("to", null);
+		if (to != null) {
+			data.put("to", signalingDispatcher.getRoute(to));
+		}
+		socket.emit("message", new JSONArray().put(encodeMessage(to, data)));
+	}
+
+	// Return |data| as it goes on the wire: encoded with the codec its
+	// recipient, peer |to|, reads, or as is, advertising our codecs, if it's a
+	// broadcast (not everyone may read it), we don't know one yet, or the codec
+	// leaves its type to JSON.
+	private JSONObject encodeMessage(String to, JSONObject data)
+			throws JSONException {
+		SignalingCodec codec = data.optBoolean("broadcast", false) ? null
+				: signalingDispatcher.getCodec(to);
+		String payload = codec != null ? codec.encode(data) : null;
+		if (payload == null) {
+			data.put(SignalingDispatcher.CODECS_FIELD,
+					signalingDispatcher.getCodecNames());
+			return data;
+		}
+		JSONObject envelope = new JSONObject();
+		for (String field : SignalingDispatcher.ROUTING_FIELDS) {
+			if (data.has(field)) {
+				envelope.put(field, data.get(field));
+			}
+		}
+		envelope.put(SignalingDispatcher.CODEC_FIELD, codec.getName());
+		envelope.put(SignalingDispatcher.PAYLOAD_FIELD, payload);
+		return envelope;
+	}
+
+	/**
+	 * Return the Peer registered for |id|, or log and return null if there is
+	 * none, e.g. because a |type| message raced with its removal.
+	 */
+	private Peer getPeer(String id, String type) {
+		Peer peer = peers.get(id);
+		if (peer == null) {
+			Log.w(TAG, "Dropping " + type + " from unknown peer " + id);
+		}
+		return peer;
 	}
 
 	/**
+	 * Return the Peer registered for |id|, creating it (and its PeerConnection)
+	 * first if necessary. Returns null if the local stack isn't up yet.
+	 * 
 	 * From https://github.com/pchab/AndroidRTC
 	 */
-	private void addPeer(String id, int endPoint) {
-		Peer peer = new Peer(this, id, pcFactory, localMediaStream, sp);
-		peers.put(id, peer);
-		// endPoints[endPoint] = true;
+	private Peer getOrAddPeer(String id, boolean initiator) {
+		Peer peer = peers.get(id);
+		if (peer != null) {
+			return peer;
+		}
+		synchronized (peers) {
+			peer = peers.get(id);
+			if (peer == null) {
+				if (state.get() != State.ACTIVE) {
+					Log.w(TAG, "Not adding peer " + id + " after disconnect");
+					return null;
+				}
+				if (sp == null || pcFactory == null) {
+					Log.w(TAG, "Not ready for peer " + id + " yet");
+					return null;
+				}
+				Log.d(TAG, "Adding peer " + id);
+				peer = new Peer(this, id, initiator, pcFactory,
+						localMedia, sp, getMediaPolicy(id));
+				peers.put(id, peer);
+			}
+		}
+		return peer;
+	}
+
+	private MediaPolicy getMediaPolicy(String id) {
+		MediaPolicy policy = peerMediaPolicies.get(id);
+		return policy != null ? policy : sp.mediaPolicy;
+	}
+
+	/**
+	 * Override the session's codec and bitrate policy for peer |id|, or go
+	 * back to the session's if |policy| is null. Takes effect from the peer's
+	 * next offer or answer.
+	 */
+	public void setMediaPolicy(String id, MediaPolicy policy) {
+		if (policy == null) {
+			peerMediaPolicies.remove(id);
+		} else {
+			peerMediaPolicies.put(id, policy);
+		}
+		Peer peer = peers.get(id);
+		if (peer != null && sp != null) {
+			peer.setMediaPolicy(getMediaPolicy(id));
+		}
+	}
+
+	/**
+	 * Open a data channel labelled |label| to peer |id|; see
+	 * Peer.createDataChannel(). Returns null if there's no such peer.
+	 */
+	public PeerDataChannel createDataChannel(String id, String label,
+			boolean reliable, PeerDataChannel.Listener listener) {
+		Peer peer = getPeer(id, "data channel");
+		return peer != null ? peer.createDataChannel(label, reliable,
+				listener) : null;
+	}
+
+	/**
+	 * Accept the data channels peers open to us, reporting them to |listener|,
+	 * or refuse them if |listener| is null.
+	 */
+	public void setDataChannelListener(PeerDataChannel.Listener listener) {
+		dataChannelListener = listener;
+	}
+
+	PeerDataChannel.Listener getDataChannelListener() {
+		return dataChannelListener;
 	}
 
 	/**
+	 * Called on the signaling thread when negotiation with peer |id| failed
+	 * in a way it can't recover from: tell it we're done, and remove it.
+	 */
+	void onPeerFailed(String id) {
+		Log.e(TAG, "Giving up on peer " + id);
+		try {
+			sendMessage(id, false, new JSONObject().put("type", "bye"));
+		} catch (JSONException e) {
+			Log.e(TAG, "Error sending bye!");
+			e.printStackTrace();
+		}
+		removePeer(id);
+	}
+
+	/**
+	 * Remove the Peer registered for |id|, if any, and dispose of its
+	 * PeerConnection. Safe to call concurrently; only one caller disposes.
+	 * 
 	 * From https://github.com/pchab/AndroidRTC
 	 */
 	private void removePeer(String id) {
-		Peer peer = peers.get(id);
-		peer.pc.close();
-		peer.pc.dispose();
-		peers.remove(peer.id);
-		// endPoints[peer.endPoint] = false;
+		Peer peer = peers.remove(id);
+		if (peer == null) {
+			return;
+		}
+		Log.d(TAG, "Removing peer " + id);
+		signalingDispatcher.forgetPeer(id);
+		videoQuality.removePeer(id);
+		vsv.removeStream(id);
+		updateVideoLayout();
+		peer.close();
 	}
 }
@@ -0,0 +1,313 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.koushikdutta.async.http.socketio.Acknowledge;
+import com.koushikdutta.async.http.socketio.EventCallback;
+
+/**
+ * Parses "message" events relayed by the signaling server and hands them to a
+ * Listener on an Executor of the caller's choosing, in the order they arrived.
+ * Session uses a single background thread, so no JSON work lands on the UI
+ * thread and each Peer sees its messages in order; tests can pass an Executor
+ * that runs commands inline. Deliberately free of Android dependencies.
+ * 
+ * It also settles which SignalingCodec to use with each peer. Plain JSON
+ * messages advertise the codecs we read in CODECS_FIELD; once a peer's
+ * advertisement (or an encoded message) shows a codec we both speak, our
+ * messages to it go encoded, as CODEC_FIELD and PAYLOAD_FIELD plus the
+ * routing fields. Peers that advertise nothing keep getting plain JSON.
+ * 
+ * The server gives a client a new id each time it (re)connects, so every
+ * message we send also carries our SESSION_FIELD, which lasts as long as the
+ * Session. Peers that send one are known by it rather than by their client id,
+ * so their Peer survives their reconnects; getRoute() maps it back to the
+ * client id the server delivers to.
+ */
+class SignalingDispatcher implements EventCallback {
+	// Peer id used for messages that don't name a sender, e.g. from a
+	// signaling server that only ever relays between two clients.
+	static final String DEFAULT_PEER_ID = "the-only-peer";
+
+	static final String CODECS_FIELD = "codecs";
+	static final String CODEC_FIELD = "codec";
+	static final String PAYLOAD_FIELD = "payload";
+	static final String SESSION_FIELD = "sid";
+
+	// The fields the server routes by, which stay outside encoded payloads.
+	static final String[] ROUTING_FIELDS = { "from", "to", "broadcast",
+			SESSION_FIELD };
+
+	/**
+	 * Receives messages on the dispatcher's Executor, one at a time. |from| is
+	 * the sender's peer id: its session id if it sent one, else its client id.
+	 */
+	interface Listener {
+		void onHello(String from, JSONObject data, Acknowledge ack);
+
+		void onOffer(String from, JSONObject data, Acknowledge ack);
+
+		void onAnswer(String from, JSONObject data, Acknowledge ack);
+
+		// Either a single "candidate" or a batch of "candidates".
+		void onCandidates(String from, JSONObject data, Acknowledge ack);
+
+		// A request for an offer, from a peer that doesn't make them.
+		void onRenegotiate(String from);
+
+		void onBye(String from);
+
+		void onBadMessage(JSONArray message, String reason);
+	}
+
+	private final Executor executor;
+	private final Listener listener;
+	// Our own id on the signaling server, as told to us in its first "hello".
+	// Read on the socket.io thread to filter out messages meant for others.
+	private volatile String selfId;
+	private final String sessionId = UUID.randomUUID().toString();
+	// Each peer's client id by its session id, and the other way around, as
+	// last heard from it.
+	private final ConcurrentHashMap<String, String> routes = new ConcurrentHashMap<String, String>();
+	private final ConcurrentHashMap<String, String> aliases = new ConcurrentHashMap<String, String>();
+	// The codecs we read, by name, in order of preference.
+	private final LinkedHashMap<String, SignalingCodec> codecs = new LinkedHashMap<String, SignalingCodec>();
+	private final String codecNames;
+	// The codec each peer reads, once we know of one.
+	private final ConcurrentHashMap<String, SignalingCodec> peerCodecs = new ConcurrentHashMap<String, SignalingCodec>();
+
+	public SignalingDispatcher(Executor executor, Listener listener,
+			SignalingCodec... codecs) {
+		this.executor = executor;
+		this.listener = listener;
+		StringBuilder names = new StringBuilder();
+		for (SignalingCodec codec : codecs) {
+			this.codecs.put(codec.getName(), codec);
+			names.append(names.length() > 0 ? "," : "").append(codec.getName());
+		}
+		this.codecNames = names.toString();
+	}
+
+	/** The codecs we read, comma-separated, to advertise in CODECS_FIELD. */
+	public String getCodecNames() {
+		return codecNames;
+	}
+
+	/**
+	 * The codec to encode messages to |peerId| with, or null to send them as
+	 * plain JSON.
+	 */
+	public SignalingCodec getCodec(String peerId) {
+		return peerId != null ? peerCodecs.get(peerId) : null;
+	}
+
+	/** Forget what |peerId| reads and where it is, e.g. as it leaves. */
+	public void forgetPeer(String peerId) {
+		peerCodecs.remove(peerId);
+		String route = routes.remove(peerId);
+		if (route != null) {
+			aliases.remove(route, peerId);
+		}
+	}
+
+	/** The client id to address messages for |peerId| to. */
+	public String getRoute(String peerId) {
+		String route = peerId != null ? routes.get(peerId) : null;
+		return route != null ? route : peerId;
+	}
+
+	/** The peer id that messages from client id |clientId| go to. */
+	public String getPeerId(String clientId) {
+		String peerId = aliases.get(clientId);
+		return peerId != null ? peerId : clientId;
+	}
+
+	/** Our id for the lifetime of the Session, sent as SESSION_FIELD. */
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	/** Our id on the signaling server, or null if it hasn't told us yet. */
+	public String getSelfId() {
+		return selfId;
+	}
+
+	@Override
+	public void onEvent(final JSONArray message, final Acknowledge ack) {
+		// Drop messages addressed to other clients right here on the
+		// socket.io thread, before logging, posting or parsing them.
+		final JSONObject data = message.optJSONObject(0);
+		if (data != null && !isAddressedToMe(data)) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					dispatch(message, data, ack);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shutting down; nobody is listening anymore.
+		}
+	}
+
+	// Route |data| to the Listener method for its type.
+	void dispatch(JSONArray message, JSONObject data, Acknowledge ack) {
+		if (data == null) {
+			listener.onBadMessage(message, "no JSONObject at index 0");
+			return;
+		}
+		String from = resolveSender(data);
+		if (data.has(PAYLOAD_FIELD)) {
+			data = decode(message, from, data);
+			if (data == null) {
+				return;
+			}
+		} else if (data.has(CODECS_FIELD)) {
+			pickCodec(from, data.optString(CODECS_FIELD));
+		}
+
+		String type = data.optString("type", null);
+		if (type == null) {
+			listener.onBadMessage(message, "no 'type' field");
+			return;
+		}
+
+		if ("hello".equals(type)) {
+			if (!data.has("from") && data.has("clientId")) {
+				// This hello is from the server itself, telling us who we are.
+				selfId = data.optString("clientId");
+			}
+			listener.onHello(from, data, ack);
+		} else if ("candidate".equals(type) || "candidates".equals(type)) {
+			listener.onCandidates(from, data, ack);
+		} else if ("offer".equalsIgnoreCase(type)) {
+			listener.onOffer(from, data, ack);
+		} else if ("answer".equalsIgnoreCase(type)) {
+			listener.onAnswer(from, data, ack);
+		} else if ("renegotiate".equals(type)) {
+			listener.onRenegotiate(from);
+		} else if ("bye".equals(type)) {
+			listener.onBye(from);
+		} else {
+			listener.onBadMessage(message, "unknown type " + type);
+		}
+	}
+
+	// Return encoded message |envelope| from |from| decoded, with its routing
+	// fields, or report it and return null if that fails.
+	private JSONObject decode(JSONArray message, String from,
+			JSONObject envelope) {
+		String name = envelope.optString(CODEC_FIELD);
+		SignalingCodec codec = codecs.get(name);
+		if (codec == null) {
+			listener.onBadMessage(message, "unknown codec " + name);
+			return null;
+		}
+		try {
+			JSONObject data = codec.decode(envelope.getString(PAYLOAD_FIELD));
+			for (String field : ROUTING_FIELDS) {
+				if (envelope.has(field)) {
+					data.put(field, envelope.get(field));
+				}
+			}
+			// It reads what it writes.
+			peerCodecs.put(from, codec);
+			return data;
+		} catch (JSONException e) {
+			listener.onBadMessage(message,
+					"undecodable " + name + " payload: " + e.getMessage());
+			return null;
+		}
+	}
+
+	// Return the peer id of |data|'s sender, learning its current client id
+	// if it names its session.
+	private String resolveSender(JSONObject data) {
+		String clientId = data.optString("from", null);
+		if (clientId == null) {
+			return DEFAULT_PEER_ID;
+		}
+		String peerId = data.optString(SESSION_FIELD, null);
+		if (peerId == null) {
+			return getPeerId(clientId);
+		}
+		String oldClientId = routes.put(peerId, clientId);
+		if (oldClientId != null && !oldClientId.equals(clientId)) {
+			// It reconnected; its old client id is gone for good.
+			aliases.remove(oldClientId, peerId);
+		}
+		aliases.put(clientId, peerId);
+		return peerId;
+	}
+
+	// Settle on the first codec |from| advertised in |names| that we read.
+	private void pickCodec(String from, String names) {
+		if (peerCodecs.containsKey(from)) {
+			return;
+		}
+		for (String name : names.split(",")) {
+			SignalingCodec codec = codecs.get(name.trim());
+			if (codec != null) {
+				peerCodecs.put(from, codec);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Whether an incoming message concerns us: it's a broadcast from someone
+	 * else, or it's addressed to our id. Only cheap field lookups are done
+	 * here since it runs for every message relayed to this client.
+	 */
+	boolean isAddressedToMe(JSONObject data) {
+		String me = selfId;
+		if (me == null) {
+			// Can't tell until the server has told us who we are.
+			return true;
+		}
+		if (me.equals(data.optString("from", null))
+				|| sessionId.equals(data.optString(SESSION_FIELD, null))) {
+			// Our own broadcast echoed back.
+			return false;
+		}
+		String to = data.optString("to", null);
+		return to == null || data.optBoolean("broadcast", false)
+				|| me.equals(to);
+	}
+}
@@ -33,19 +33,37 @@ import org.webrtc.MediaConstraints;
 import org.webrtc.PeerConnection;
 
 public class SignalingParameters {
+	// How long to collect local ICE candidates before sending them to a peer
+	// as one message. 0 sends every candidate on its own as it's gathered.
+	public static final int DEFAULT_CANDIDATE_BATCH_MS = 50;
+
 	public final List<PeerConnection.IceServer> iceServers;
 	public final boolean initiator;
 	public final MediaConstraints pcConstraints;
 	public final MediaConstraints videoConstraints;
 	public final MediaConstraints audioConstraints;
+	public final int candidateBatchMs;
+	// Codec and bitrate policy for peers without an override of their own.
+	public final MediaPolicy mediaPolicy;
 
 	public SignalingParameters(List<PeerConnection.IceServer> iceServers,
 			boolean initiator, MediaConstraints pcConstraints,
 			MediaConstraints videoConstraints, MediaConstraints audioConstraints) {
+		this(iceServers, initiator, pcConstraints, videoConstraints,
+				audioConstraints, DEFAULT_CANDIDATE_BATCH_MS, MediaPolicy.DEFAULT);
+	}
+
+	public SignalingParameters(List<PeerConnection.IceServer> iceServers,
+			boolean initiator, MediaConstraints pcConstraints,
+			MediaConstraints videoConstraints,
+			MediaConstraints audioConstraints, int candidateBatchMs,
+			MediaPolicy mediaPolicy) {
 		this.iceServers = iceServers;
 		this.initiator = initiator;
 		this.pcConstraints = pcConstraints;
 		this.videoConstraints = videoConstraints;
 		this.audioConstraints = audioConstraints;
+		this.candidateBatchMs = candidateBatchMs;
+		this.mediaPolicy = mediaPolicy;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,186 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.webrtc.StatsObserver;
+import org.webrtc.StatsReport;
+
+import android.util.Log;
+
+/**
+ * Polls getStats() on every peer in a registry on its own thread, folds the
+ * reports into a PeerStats per peer, and hands each update to the listeners.
+ * Nothing is logged per poll, and neither the UI nor the GL thread is ever
+ * involved.
+ */
+public class StatsCollector {
+	private static final String TAG = "StatsCollector";
+
+	public interface Listener {
+		/**
+		 * Called on the stats thread after every poll of |peerId|. |stats| is
+		 * live; copy out what's needed rather than keeping it.
+		 */
+		public void onStats(String peerId, PeerStats stats);
+	}
+
+	private final Map<String, Peer> peers;
+	private final ConcurrentHashMap<String, Poller> pollers = new ConcurrentHashMap<String, Poller>();
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	// Non-null while started. Guarded by |this|.
+	private ScheduledExecutorService executor;
+
+	// Polls one peer, and parses its reports back on the stats thread.
+	private class Poller implements StatsObserver, Runnable {
+		final String peerId;
+		final PeerStats stats = new PeerStats();
+		// Set while a poll is outstanding, so a slow peer doesn't pile them up.
+		volatile boolean polling = false;
+		private volatile StatsReport[] reports;
+
+		Poller(String peerId) {
+			this.peerId = peerId;
+		}
+
+		void poll(Peer peer) {
+			if (polling) {
+				return;
+			}
+			polling = true;
+			if (!peer.getStats(this)) {
+				polling = false;
+			}
+		}
+
+		// On a WebRTC thread; get off it right away.
+		@Override
+		public void onComplete(StatsReport[] reports) {
+			this.reports = reports;
+			if (!execute(this)) {
+				polling = false;
+			}
+		}
+
+		@Override
+		public void run() {
+			StatsReport[] reports = this.reports;
+			this.reports = null;
+			polling = false;
+			if (reports == null || !pollers.containsKey(peerId)) {
+				return;
+			}
+			stats.update(reports);
+			for (Listener listener : listeners) {
+				listener.onStats(peerId, stats);
+			}
+		}
+	}
+
+	private final Runnable pollAll = new Runnable() {
+		public void run() {
+			pollers.keySet().retainAll(peers.keySet());
+			for (Map.Entry<String, Peer> entry : peers.entrySet()) {
+				Poller poller = pollers.get(entry.getKey());
+				if (poller == null) {
+					poller = new Poller(entry.getKey());
+					pollers.put(entry.getKey(), poller);
+				}
+				poller.poll(entry.getValue());
+			}
+		}
+	};
+
+	/** Collect stats for whichever peers are in |peers| at each poll. */
+	public StatsCollector(Map<String, Peer> peers) {
+		this.peers = peers;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/** Return the stats collected for |peerId| so far, or null if none. */
+	public PeerStats getStats(String peerId) {
+		Poller poller = pollers.get(peerId);
+		return poller == null ? null : poller.stats;
+	}
+
+	/** Poll every |periodMs|, starting now. A no-op if already started. */
+	public synchronized void start(long periodMs) {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Stats");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.scheduleAtFixedRate(pollAll, 0, periodMs,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/** Stop polling, dropping any polls in flight. */
+	public synchronized void stop() {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdownNow();
+		executor = null;
+		pollers.clear();
+	}
+
+	// Run |r| on the stats thread; false if stopped.
+	private synchronized boolean execute(Runnable r) {
+		if (executor == null) {
+			return false;
+		}
+		try {
+			executor.execute(r);
+			return true;
+		} catch (RejectedExecutionException e) {
+			Log.w(TAG, "Dropping stats after shutdown");
+			return false;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import java.util.HashMap;
+
+/**
+ * Decides the capture resolution and frame rate to send at, stepping down a
+ * ladder of levels while the uplink to any peer is congested and back up once
+ * it has been clear to every peer for a while. Congestion is read from the
+ * send-side bandwidth estimate and packet loss of each peer's stats.
+ * 
+ * Hysteresis keeps it from oscillating: a level's conditions must hold for a
+ * while before it's left (longer going up than down), stepping up needs
+ * headroom above the next level's bitrate, and after every step decisions
+ * wait for the stats to reflect it.
+ * 
+ * Pure logic with no Android or WebRTC dependencies, driven by explicit
+ * timestamps, so it can be replayed against recorded stats traces. Thread
+ * safe.
+ */
+public class VideoQualityController {
+	/** One rung of the ladder: capture limits, and the bitrate they need. */
+	public static class Level {
+		public final int maxWidth;
+		public final int maxHeight;
+		public final int maxFrameRate;
+		// Below this estimated send bandwidth the level is congested.
+		public final int minKbps;
+
+		public Level(int maxWidth, int maxHeight, int maxFrameRate, int minKbps) {
+			this.maxWidth = maxWidth;
+			this.maxHeight = maxHeight;
+			this.maxFrameRate = maxFrameRate;
+			this.minKbps = minKbps;
+		}
+
+		@Override
+		public String toString() {
+			return maxWidth + "x" + maxHeight + "@" + maxFrameRate;
+		}
+	}
+
+	/** Best first. */
+	public static final Level[] DEFAULT_LADDER = {
+			new Level(1280, 720, 30, 1200), new Level(640, 480, 30, 500),
+			new Level(640, 480, 15, 300), new Level(320, 240, 15, 150),
+			new Level(176, 144, 10, 0) };
+
+	// Loss above this is congestion; stepping up needs it below LOSS_LOW.
+	static final float LOSS_HIGH_PERCENT = 10;
+	static final float LOSS_LOW_PERCENT = 2;
+	// Stepping up needs this much more bandwidth than the next level's min.
+	static final float UPGRADE_HEADROOM = 1.25f;
+	// How long conditions must hold before stepping down or up.
+	static final long DOWNGRADE_HOLD_MS = 3000;
+	static final long UPGRADE_HOLD_MS = 10000;
+	// After a step, how long to ignore stats that predate its effect.
+	static final long SETTLE_MS = 4000;
+
+	private final Level[] ladder;
+	private int level;
+	// Latest {available kbps, loss %} per peer; NaN where unreported.
+	private final HashMap<String, float[]> peers = new HashMap<String, float[]>();
+	// When the current run of congested or clear samples began, or -1.
+	private long congestedSinceMs = -1;
+	private long clearSinceMs = -1;
+	private long settledAtMs = Long.MIN_VALUE;
+
+	public VideoQualityController(Level[] ladder, int startLevel) {
+		if (ladder.length == 0 || startLevel < 0
+				|| startLevel >= ladder.length) {
+			throw new IllegalArgumentException("Bad ladder or start level");
+		}
+		this.ladder = ladder;
+		this.level = startLevel;
+	}
+
+	/** Return the index in the ladder of the level to send at. */
+	public synchronized int getLevelIndex() {
+		return level;
+	}
+
+	/** Return the level to send at. */
+	public synchronized Level getLevel() {
+		return ladder[level];
+	}
+
+	/**
+	 * Take the latest stats of |peerId|, sampled at |nowMs|. Either may be NaN
+	 * if not reported. Returns the level to switch to if that changed, or null.
+	 */
+	public synchronized Level onStats(String peerId, long nowMs,
+			float availableSendKbps, float sendLossPercent) {
+		float[] latest = peers.get(peerId);
+		if (latest == null) {
+			latest = new float[2];
+			peers.put(peerId, latest);
+		}
+		latest[0] = availableSendKbps;
+		latest[1] = sendLossPercent;
+		if (nowMs < settledAtMs) {
+			return null;
+		}
+
+		if (isCongested()) {
+			clearSinceMs = -1;
+			if (congestedSinceMs < 0) {
+				congestedSinceMs = nowMs;
+			}
+			if (nowMs - congestedSinceMs >= DOWNGRADE_HOLD_MS
+					&& level < ladder.length - 1) {
+				return step(level + 1, nowMs);
+			}
+		} else if (level > 0 && isClearFor(ladder[level - 1])) {
+			congestedSinceMs = -1;
+			if (clearSinceMs < 0) {
+				clearSinceMs = nowMs;
+			}
+			if (nowMs - clearSinceMs >= UPGRADE_HOLD_MS) {
+				return step(level - 1, nowMs);
+			}
+		} else {
+			congestedSinceMs = clearSinceMs = -1;
+		}
+		return null;
+	}
+
+	/** Forget |peerId|, e.g. once it has left. */
+	public synchronized void removePeer(String peerId) {
+		peers.remove(peerId);
+	}
+
+	private Level step(int newLevel, long nowMs) {
+		level = newLevel;
+		congestedSinceMs = clearSinceMs = -1;
+		settledAtMs = nowMs + SETTLE_MS;
+		return ladder[level];
+	}
+
+	// Whether the uplink to any peer can't sustain the current level.
+	private boolean isCongested() {
+		for (float[] latest : peers.values()) {
+			if (latest[0] < ladder[level].minKbps
+					|| latest[1] > LOSS_HIGH_PERCENT) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Whether the uplink to every peer could sustain |next| with headroom.
+	// Unreported bandwidth doesn't count as room to grow.
+	private boolean isClearFor(Level next) {
+		for (float[] latest : peers.values()) {
+			if (!(latest[0] >= next.minKbps * UPGRADE_HEADROOM)
+					|| !(latest[1] < LOSS_LOW_PERCENT)) {
+				return false;
+			}
+		}
+		return !peers.isEmpty();
+	}
+}
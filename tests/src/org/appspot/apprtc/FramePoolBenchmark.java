@@ -0,0 +1,149 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.appspot.apprtc;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Races N producer threads, each a stream decoding into frames from
+ * FramePool.takeFrame() at its own resolution with up to FRAMES_IN_FLIGHT
+ * out at once, against one consumer thread that, like VideoStreamsView's GL
+ * thread, hands each frame back with returnFrame().  Reports frames per second and the pool's hit rate for each
+ * N.  A plain JVM main, not part of the app; from the project root:
+ *
+ * javac -d /tmp/pool -cp libs/libjingle_peerconnection.jar
+ * src/org/appspot/apprtc/FramePool.java
+ * tests/src/org/appspot/apprtc/FramePoolBenchmark.java
+ *
+ * java -cp /tmp/pool:libs/libjingle_peerconnection.jar
+ * org.appspot.apprtc.FramePoolBenchmark
+ */
+public class FramePoolBenchmark {
+  private static final int[] PRODUCERS = { 1, 2, 4, 8 };
+  private static final long RUN_MS = 2000;
+  private static final int ROUNDS = 3;
+  // Frames each stream may have in flight, as in VideoStreamsView.
+  private static final int FRAMES_IN_FLIGHT = 2;
+
+  // A frame on its way to the consumer, and its stream's in-flight permits.
+  private static class Rendering {
+    final I420Frame frame;
+    final Semaphore inFlight;
+
+    Rendering(I420Frame frame, Semaphore inFlight) {
+      this.frame = frame;
+      this.inFlight = inFlight;
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    for (int round = 0; round < ROUNDS; ++round) {
+      for (int producers : PRODUCERS) {
+        run(round, producers);
+      }
+    }
+  }
+
+  private static void run(int round, int producers)
+      throws InterruptedException {
+    final FramePool pool = new FramePool();
+    pool.setStreamCount(producers);
+    final BlockingQueue<Rendering> rendering =
+        new ArrayBlockingQueue<Rendering>(producers * FRAMES_IN_FLIGHT);
+    final AtomicBoolean stop = new AtomicBoolean(false);
+    final AtomicLong rendered = new AtomicLong();
+
+    List<Thread> producerThreads = new ArrayList<Thread>();
+    for (int p = 0; p < producers; ++p) {
+      // Each stream at its own 16:9 resolution, unpadded.
+      int width = 320 + 32 * p;
+      int height = width * 9 / 16;
+      final I420Frame source = new I420Frame(width, height,
+          new int[] { width, width / 2, width / 2 }, null);
+      final Semaphore inFlight = new Semaphore(FRAMES_IN_FLIGHT);
+      producerThreads.add(new Thread("Producer" + p) {
+        @Override
+        public void run() {
+          while (!stop.get()) {
+            try {
+              inFlight.acquire();
+            } catch (InterruptedException e) {
+              return;
+            }
+            // Never blocks: there's room for every stream's permits.
+            rendering.add(new Rendering(pool.takeFrame(source), inFlight));
+          }
+        }
+      });
+    }
+    Thread consumer = new Thread("Consumer") {
+      @Override
+      public void run() {
+        while (!stop.get()) {
+          Rendering r = rendering.poll();
+          if (r != null) {
+            pool.returnFrame(r.frame);
+            r.inFlight.release();
+            rendered.incrementAndGet();
+          }
+        }
+      }
+    };
+
+    long startNs = System.nanoTime();
+    for (Thread thread : producerThreads) {
+      thread.start();
+    }
+    consumer.start();
+    Thread.sleep(RUN_MS);
+    stop.set(true);
+    consumer.join();
+    for (Thread thread : producerThreads) {
+      // Any still waiting for a permit are done too.
+      thread.interrupt();
+      thread.join();
+    }
+    double seconds = (System.nanoTime() - startNs) / 1e9;
+
+    long hits = pool.getHits();
+    long misses = pool.getMisses();
+    System.out.println(String.format(
+        "round %d, %d producers: %.0f frames/s, hit rate %.4f%% " +
+        "(%d misses, %d evictions)", round, producers,
+        rendered.get() / seconds, 100.0 * hits / (hits + misses), misses,
+        pool.getEvictions()));
+  }
+}
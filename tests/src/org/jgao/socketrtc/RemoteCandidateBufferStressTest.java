@@ -0,0 +1,181 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.webrtc.IceCandidate;
+
+/**
+ * Races PRODUCERS threads add()ing candidates, some of them repeatedly,
+ * against a thread flipping the buffer between open() and hold(), as a remote
+ * description being set does. Checks that a fake Sink gets every candidate
+ * exactly once, each producer's in the order it added them, never from two
+ * threads at a time, and nothing while the buffer is held. A plain JVM main,
+ * not part of the app; from the project root:
+ * 
+ * javac -d /tmp/stress -cp libs/libjingle_peerconnection.jar
+ * src/org/appspot/apprtc/LatencyHistogram.java
+ * src/org/jgao/socketrtc/RemoteCandidateBuffer.java
+ * tests/src/org/jgao/socketrtc/RemoteCandidateBufferStressTest.java
+ * 
+ * java -cp /tmp/stress:libs/libjingle_peerconnection.jar
+ * org.jgao.socketrtc.RemoteCandidateBufferStressTest
+ */
+public class RemoteCandidateBufferStressTest {
+	private static final int ROUNDS = 200;
+	private static final int PRODUCERS = 4;
+	private static final int CANDIDATES = 2000;
+	// Every REPEAT_EVERY-th candidate is added twice.
+	private static final int REPEAT_EVERY = 3;
+	private static final int FLIPS = 50;
+
+	// Records what the buffer passes on, and whether it ever overlaps.
+	private static class FakeSink implements RemoteCandidateBuffer.Sink {
+		final List<IceCandidate> received = new ArrayList<IceCandidate>();
+		final AtomicInteger inside = new AtomicInteger();
+		volatile boolean overlapped = false;
+
+		@Override
+		public void addCandidate(IceCandidate candidate) {
+			if (inside.incrementAndGet() != 1) {
+				overlapped = true;
+			}
+			synchronized (received) {
+				received.add(candidate);
+			}
+			inside.decrementAndGet();
+		}
+
+		int size() {
+			synchronized (received) {
+				return received.size();
+			}
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		for (int round = 0; round < ROUNDS; ++round) {
+			runRound();
+		}
+		System.out.println(ROUNDS + " rounds of " + PRODUCERS + "x"
+				+ CANDIDATES + " candidates: ok");
+	}
+
+	private static void runRound() throws InterruptedException {
+		final FakeSink sink = new FakeSink();
+		final RemoteCandidateBuffer buffer = new RemoteCandidateBuffer(sink);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < PRODUCERS; ++p) {
+			final int producer = p;
+			threads.add(new Thread() {
+				public void run() {
+					awaitQuietly(start);
+					for (int i = 0; i < CANDIDATES; ++i) {
+						buffer.add(candidate(producer, i));
+						if (i % REPEAT_EVERY == 0) {
+							buffer.add(candidate(producer, i));
+						}
+					}
+				}
+			});
+		}
+		threads.add(new Thread() {
+			public void run() {
+				awaitQuietly(start);
+				for (int i = 0; i < FLIPS; ++i) {
+					buffer.open();
+					Thread.yield();
+					buffer.hold();
+				}
+			}
+		});
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// Held: nothing more gets through, not even new candidates.
+		int before = sink.size();
+		buffer.add(candidate(PRODUCERS, 0));
+		check(sink.size() == before, "passed on while held");
+		buffer.open();
+
+		int expected = PRODUCERS * CANDIDATES + 1;
+		check(sink.size() == expected, "got " + sink.size() + " of "
+				+ expected);
+		check(!sink.overlapped, "sink called from two threads at once");
+		long repeats = PRODUCERS * ((CANDIDATES - 1) / REPEAT_EVERY + 1);
+		check(buffer.getDuplicates() == repeats, "counted "
+				+ buffer.getDuplicates() + " duplicates of " + repeats);
+
+		Set<String> seen = new HashSet<String>();
+		int[] last = new int[PRODUCERS + 1];
+		Arrays.fill(last, -1);
+		for (IceCandidate candidate : sink.received) {
+			check(seen.add(candidate.sdp), "duplicate " + candidate.sdp);
+			int producer = candidate.sdpMLineIndex;
+			int index = Integer.parseInt(candidate.sdp.substring(
+					candidate.sdp.indexOf(' ') + 1));
+			check(index > last[producer], "producer " + producer
+					+ " out of order at " + candidate.sdp);
+			last[producer] = index;
+		}
+	}
+
+	// Producer |producer|'s |index|th candidate; sdpMLineIndex names the
+	// producer, and the sdp is unique.
+	private static IceCandidate candidate(int producer, int index) {
+		return new IceCandidate("m" + producer, producer, "c" + producer + " "
+				+ index);
+	}
+
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
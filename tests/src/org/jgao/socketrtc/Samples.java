@@ -0,0 +1,330 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+/**
+ * Typical signaling from this era's libjingle, shared by the benchmarks: an
+ * audio, video and data offer, a larger multi-stream one, and the ICE
+ * candidates gathered alongside them.
+ */
+class Samples {
+	static final String OFFER = ""
+			+ "v=0\r\n"
+			+ "o=- 4327261771880257373 2 IN IP4 127.0.0.1\r\n"
+			+ "s=-\r\n"
+			+ "t=0 0\r\n"
+			+ "a=group:BUNDLE audio video data\r\n"
+			+ "a=msid-semantic: WMS ARDAMS\r\n"
+			+ "m=audio 1 RTP/SAVPF 111 103 104 0 8 106 105 13 126\r\n"
+			+ "c=IN IP4 0.0.0.0\r\n"
+			+ "a=rtcp:1 IN IP4 0.0.0.0\r\n"
+			+ "a=ice-ufrag:jV9S4u0+T2BUaYzi\r\n"
+			+ "a=ice-pwd:oM0T0yGLRD2RHfbzvvBzQ8XW\r\n"
+			+ "a=ice-options:google-ice\r\n"
+			+ "a=fingerprint:sha-256 4E:2F:D1:3B:8C:58:AD:1E:DC:41:59:C8:E4:9D:91:D6:46:5B:0A:C1:74:4C:E9:16:0D:2F:B3:15:B6:A3:0A:9D\r\n"
+			+ "a=setup:actpass\r\n"
+			+ "a=mid:audio\r\n"
+			+ "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n"
+			+ "a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+			+ "a=sendrecv\r\n"
+			+ "a=rtcp-mux\r\n"
+			+ "a=crypto:0 AES_CM_128_HMAC_SHA1_32 inline:kL4E8LKbOZHbbm5oWKFVnXhtRcFO9wE3pF/Uhm1n\r\n"
+			+ "a=crypto:1 AES_CM_128_HMAC_SHA1_80 inline:F8XMCuBvKnC6xzcUM+SDJ9FvwCaY9YTpg8mzZp4L\r\n"
+			+ "a=rtpmap:111 opus/48000/2\r\n"
+			+ "a=fmtp:111 minptime=10\r\n"
+			+ "a=rtpmap:103 ISAC/16000\r\n"
+			+ "a=rtpmap:104 ISAC/32000\r\n"
+			+ "a=rtpmap:0 PCMU/8000\r\n"
+			+ "a=rtpmap:8 PCMA/8000\r\n"
+			+ "a=rtpmap:106 CN/32000\r\n"
+			+ "a=rtpmap:105 CN/16000\r\n"
+			+ "a=rtpmap:13 CN/8000\r\n"
+			+ "a=rtpmap:126 telephone-event/8000\r\n"
+			+ "a=maxptime:60\r\n"
+			+ "a=ssrc:1527373612 cname:0sRz9b5SlqfTqfV3\r\n"
+			+ "a=ssrc:1527373612 msid:ARDAMS ARDAMSa0\r\n"
+			+ "a=ssrc:1527373612 mslabel:ARDAMS\r\n"
+			+ "a=ssrc:1527373612 label:ARDAMSa0\r\n"
+			+ "m=video 1 RTP/SAVPF 100 116 117\r\n"
+			+ "c=IN IP4 0.0.0.0\r\n"
+			+ "a=rtcp:1 IN IP4 0.0.0.0\r\n"
+			+ "a=ice-ufrag:jV9S4u0+T2BUaYzi\r\n"
+			+ "a=ice-pwd:oM0T0yGLRD2RHfbzvvBzQ8XW\r\n"
+			+ "a=ice-options:google-ice\r\n"
+			+ "a=fingerprint:sha-256 4E:2F:D1:3B:8C:58:AD:1E:DC:41:59:C8:E4:9D:91:D6:46:5B:0A:C1:74:4C:E9:16:0D:2F:B3:15:B6:A3:0A:9D\r\n"
+			+ "a=setup:actpass\r\n"
+			+ "a=mid:video\r\n"
+			+ "a=extmap:2 urn:ietf:params:rtp-hdrext:toffset\r\n"
+			+ "a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+			+ "a=sendrecv\r\n"
+			+ "a=rtcp-mux\r\n"
+			+ "a=crypto:1 AES_CM_128_HMAC_SHA1_80 inline:F8XMCuBvKnC6xzcUM+SDJ9FvwCaY9YTpg8mzZp4L\r\n"
+			+ "a=rtpmap:100 VP8/90000\r\n"
+			+ "a=rtcp-fb:100 ccm fir\r\n"
+			+ "a=rtcp-fb:100 nack\r\n"
+			+ "a=rtcp-fb:100 goog-remb\r\n"
+			+ "a=rtpmap:116 red/90000\r\n"
+			+ "a=rtpmap:117 ulpfec/90000\r\n"
+			+ "a=ssrc-group:FID 2231627014 632943048\r\n"
+			+ "a=ssrc:2231627014 cname:0sRz9b5SlqfTqfV3\r\n"
+			+ "a=ssrc:2231627014 msid:ARDAMS ARDAMSv0\r\n"
+			+ "a=ssrc:2231627014 mslabel:ARDAMS\r\n"
+			+ "a=ssrc:2231627014 label:ARDAMSv0\r\n"
+			+ "m=application 1 DTLS/SCTP 5000\r\n"
+			+ "c=IN IP4 0.0.0.0\r\n"
+			+ "a=ice-ufrag:jV9S4u0+T2BUaYzi\r\n"
+			+ "a=ice-pwd:oM0T0yGLRD2RHfbzvvBzQ8XW\r\n"
+			+ "a=ice-options:google-ice\r\n"
+			+ "a=fingerprint:sha-256 4E:2F:D1:3B:8C:58:AD:1E:DC:41:59:C8:E4:9D:91:D6:46:5B:0A:C1:74:4C:E9:16:0D:2F:B3:15:B6:A3:0A:9D\r\n"
+			+ "a=setup:actpass\r\n"
+			+ "a=mid:data\r\n"
+			+ "a=sctpmap:5000 webrtc-datachannel 1024\r\n";
+
+	// A bigger offer of the same shape: a second stream's audio and two video
+	// tracks on top of OFFER's, each section carrying its gathered candidates
+	// (host, IPv6, server-reflexive, TCP and relay) and FID ssrc groups.
+	static final String LARGE_OFFER = ""
+			+ "v=0\r\n"
+			+ "o=- 4327261771880257373 2 IN IP4 127.0.0.1\r\n"
+			+ "s=-\r\n"
+			+ "t=0 0\r\n"
+			+ "a=group:BUNDLE audio video audio2 video2 video3 data\r\n"
+			+ "a=msid-semantic: WMS ARDAMS ARDAMS1\r\n"
+			+ "m=audio 44323 RTP/SAVPF 111 103 104 0 8 106 105 13 126\r\n"
+			+ "c=IN IP4 93.184.216.34\r\n"
+			+ "a=rtcp:44324 IN IP4 93.184.216.34\r\n"
+			+ "a=candidate:4234997325 1 udp 2122260223 192.168.0.56 44323 typ host generation 0\r\n"
+			+ "a=candidate:4234997325 2 udp 2122260222 192.168.0.56 44324 typ host generation 0\r\n"
+			+ "a=candidate:3199528107 1 udp 2122129151 fe80::1 44325 typ host generation 0\r\n"
+			+ "a=candidate:1467250027 1 udp 1686052607 93.184.216.34 44323 typ srflx raddr 192.168.0.56 rport 44323 generation 0\r\n"
+			+ "a=candidate:1467250027 2 udp 1686052606 93.184.216.34 44324 typ srflx raddr 192.168.0.56 rport 44324 generation 0\r\n"
+			+ "a=candidate:2157334355 1 tcp 1518280447 192.168.0.56 0 typ host generation 0\r\n"
+			+ "a=candidate:1033213811 1 udp 41885439 198.51.100.7 54323 typ relay raddr 93.184.216.34 rport 44323 generation 0\r\n"
+			+ "a=ice-ufrag:jV9S4u0+T2BUaYzi\r\n"
+			+ "a=ice-pwd:oM0T0yGLRD2RHfbzvvBzQ8XW\r\n"
+			+ "a=ice-options:google-ice\r\n"
+			+ "a=fingerprint:sha-256 4E:2F:D1:3B:8C:58:AD:1E:DC:41:59:C8:E4:9D:91:D6:46:5B:0A:C1:74:4C:E9:16:0D:2F:B3:15:B6:A3:0A:9D\r\n"
+			+ "a=setup:actpass\r\n"
+			+ "a=mid:audio\r\n"
+			+ "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n"
+			+ "a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+			+ "a=sendrecv\r\n"
+			+ "a=rtcp-mux\r\n"
+			+ "a=crypto:0 AES_CM_128_HMAC_SHA1_32 inline:kL4E8LKbOZHbbm5oWKFVnXhtRcFO9wE3pF/Uhm1n\r\n"
+			+ "a=crypto:1 AES_CM_128_HMAC_SHA1_80 inline:F8XMCuBvKnC6xzcUM+SDJ9FvwCaY9YTpg8mzZp4L\r\n"
+			+ "a=rtpmap:111 opus/48000/2\r\n"
+			+ "a=fmtp:111 minptime=10\r\n"
+			+ "a=rtpmap:103 ISAC/16000\r\n"
+			+ "a=rtpmap:104 ISAC/32000\r\n"
+			+ "a=rtpmap:0 PCMU/8000\r\n"
+			+ "a=rtpmap:8 PCMA/8000\r\n"
+			+ "a=rtpmap:106 CN/32000\r\n"
+			+ "a=rtpmap:105 CN/16000\r\n"
+			+ "a=rtpmap:13 CN/8000\r\n"
+			+ "a=rtpmap:126 telephone-event/8000\r\n"
+			+ "a=maxptime:60\r\n"
+			+ "a=ssrc:1527373612 cname:0sRz9b5SlqfTqfV3\r\n"
+			+ "a=ssrc:1527373612 msid:ARDAMS ARDAMSa0\r\n"
+			+ "a=ssrc:1527373612 mslabel:ARDAMS\r\n"
+			+ "a=ssrc:1527373612 label:ARDAMSa0\r\n"
+			+ "m=video 44323 RTP/SAVPF 100 116 117\r\n"
+			+ "c=IN IP4 93.184.216.34\r\n"
+			+ "a=rtcp:44324 IN IP4 93.184.216.34\r\n"
+			+ "a=candidate:4234997325 1 udp 2122260223 192.168.0.56 44323 typ host generation 0\r\n"
+			+ "a=candidate:4234997325 2 udp 2122260222 192.168.0.56 44324 typ host generation 0\r\n"
+			+ "a=candidate:3199528107 1 udp 2122129151 fe80::1 44325 typ host generation 0\r\n"
+			+ "a=candidate:1467250027 1 udp 1686052607 93.184.216.34 44323 typ srflx raddr 192.168.0.56 rport 44323 generation 0\r\n"
+			+ "a=candidate:1467250027 2 udp 1686052606 93.184.216.34 44324 typ srflx raddr 192.168.0.56 rport 44324 generation 0\r\n"
+			+ "a=candidate:2157334355 1 tcp 1518280447 192.168.0.56 0 typ host generation 0\r\n"
+			+ "a=candidate:1033213811 1 udp 41885439 198.51.100.7 54323 typ relay raddr 93.184.216.34 rport 44323 generation 0\r\n"
+			+ "a=ice-ufrag:jV9S4u0+T2BUaYzi\r\n"
+			+ "a=ice-pwd:oM0T0yGLRD2RHfbzvvBzQ8XW\r\n"
+			+ "a=ice-options:google-ice\r\n"
+			+ "a=fingerprint:sha-256 4E:2F:D1:3B:8C:58:AD:1E:DC:41:59:C8:E4:9D:91:D6:46:5B:0A:C1:74:4C:E9:16:0D:2F:B3:15:B6:A3:0A:9D\r\n"
+			+ "a=setup:actpass\r\n"
+			+ "a=mid:video\r\n"
+			+ "a=extmap:2 urn:ietf:params:rtp-hdrext:toffset\r\n"
+			+ "a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+			+ "a=sendrecv\r\n"
+			+ "a=rtcp-mux\r\n"
+			+ "a=crypto:1 AES_CM_128_HMAC_SHA1_80 inline:F8XMCuBvKnC6xzcUM+SDJ9FvwCaY9YTpg8mzZp4L\r\n"
+			+ "a=rtpmap:100 VP8/90000\r\n"
+			+ "a=rtcp-fb:100 ccm fir\r\n"
+			+ "a=rtcp-fb:100 nack\r\n"
+			+ "a=rtcp-fb:100 goog-remb\r\n"
+			+ "a=rtpmap:116 red/90000\r\n"
+			+ "a=rtpmap:117 ulpfec/90000\r\n"
+			+ "a=ssrc-group:FID 2231627014 632943048\r\n"
+			+ "a=ssrc:2231627014 cname:0sRz9b5SlqfTqfV3\r\n"
+			+ "a=ssrc:2231627014 msid:ARDAMS ARDAMSv0\r\n"
+			+ "a=ssrc:2231627014 mslabel:ARDAMS\r\n"
+			+ "a=ssrc:2231627014 label:ARDAMSv0\r\n"
+			+ "a=ssrc:632943048 cname:0sRz9b5SlqfTqfV3\r\n"
+			+ "a=ssrc:632943048 msid:ARDAMS ARDAMSv0\r\n"
+			+ "a=ssrc:632943048 mslabel:ARDAMS\r\n"
+			+ "a=ssrc:632943048 label:ARDAMSv0\r\n"
+			+ "m=audio 44323 RTP/SAVPF 111 103 104 0 8 106 105 13 126\r\n"
+			+ "c=IN IP4 93.184.216.34\r\n"
+			+ "a=rtcp:44324 IN IP4 93.184.216.34\r\n"
+			+ "a=candidate:4234997325 1 udp 2122260223 192.168.0.56 44323 typ host generation 0\r\n"
+			+ "a=candidate:4234997325 2 udp 2122260222 192.168.0.56 44324 typ host generation 0\r\n"
+			+ "a=candidate:3199528107 1 udp 2122129151 fe80::1 44325 typ host generation 0\r\n"
+			+ "a=candidate:1467250027 1 udp 1686052607 93.184.216.34 44323 typ srflx raddr 192.168.0.56 rport 44323 generation 0\r\n"
+			+ "a=candidate:1467250027 2 udp 1686052606 93.184.216.34 44324 typ srflx raddr 192.168.0.56 rport 44324 generation 0\r\n"
+			+ "a=candidate:2157334355 1 tcp 1518280447 192.168.0.56 0 typ host generation 0\r\n"
+			+ "a=candidate:1033213811 1 udp 41885439 198.51.100.7 54323 typ relay raddr 93.184.216.34 rport 44323 generation 0\r\n"
+			+ "a=ice-ufrag:jV9S4u0+T2BUaYzi\r\n"
+			+ "a=ice-pwd:oM0T0yGLRD2RHfbzvvBzQ8XW\r\n"
+			+ "a=ice-options:google-ice\r\n"
+			+ "a=fingerprint:sha-256 4E:2F:D1:3B:8C:58:AD:1E:DC:41:59:C8:E4:9D:91:D6:46:5B:0A:C1:74:4C:E9:16:0D:2F:B3:15:B6:A3:0A:9D\r\n"
+			+ "a=setup:actpass\r\n"
+			+ "a=mid:audio2\r\n"
+			+ "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n"
+			+ "a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+			+ "a=sendrecv\r\n"
+			+ "a=rtcp-mux\r\n"
+			+ "a=crypto:0 AES_CM_128_HMAC_SHA1_32 inline:kL4E8LKbOZHbbm5oWKFVnXhtRcFO9wE3pF/Uhm1n\r\n"
+			+ "a=crypto:1 AES_CM_128_HMAC_SHA1_80 inline:F8XMCuBvKnC6xzcUM+SDJ9FvwCaY9YTpg8mzZp4L\r\n"
+			+ "a=rtpmap:111 opus/48000/2\r\n"
+			+ "a=fmtp:111 minptime=10\r\n"
+			+ "a=rtpmap:103 ISAC/16000\r\n"
+			+ "a=rtpmap:104 ISAC/32000\r\n"
+			+ "a=rtpmap:0 PCMU/8000\r\n"
+			+ "a=rtpmap:8 PCMA/8000\r\n"
+			+ "a=rtpmap:106 CN/32000\r\n"
+			+ "a=rtpmap:105 CN/16000\r\n"
+			+ "a=rtpmap:13 CN/8000\r\n"
+			+ "a=rtpmap:126 telephone-event/8000\r\n"
+			+ "a=maxptime:60\r\n"
+			+ "a=ssrc:3958275140 cname:0sRz9b5SlqfTqfV3\r\n"
+			+ "a=ssrc:3958275140 msid:ARDAMS1 ARDAMS1a0\r\n"
+			+ "a=ssrc:3958275140 mslabel:ARDAMS1\r\n"
+			+ "a=ssrc:3958275140 label:ARDAMS1a0\r\n"
+			+ "m=video 44323 RTP/SAVPF 100 116 117\r\n"
+			+ "c=IN IP4 93.184.216.34\r\n"
+			+ "a=rtcp:44324 IN IP4 93.184.216.34\r\n"
+			+ "a=candidate:4234997325 1 udp 2122260223 192.168.0.56 44323 typ host generation 0\r\n"
+			+ "a=candidate:4234997325 2 udp 2122260222 192.168.0.56 44324 typ host generation 0\r\n"
+			+ "a=candidate:3199528107 1 udp 2122129151 fe80::1 44325 typ host generation 0\r\n"
+			+ "a=candidate:1467250027 1 udp 1686052607 93.184.216.34 44323 typ srflx raddr 192.168.0.56 rport 44323 generation 0\r\n"
+			+ "a=candidate:1467250027 2 udp 1686052606 93.184.216.34 44324 typ srflx raddr 192.168.0.56 rport 44324 generation 0\r\n"
+			+ "a=candidate:2157334355 1 tcp 1518280447 192.168.0.56 0 typ host generation 0\r\n"
+			+ "a=candidate:1033213811 1 udp 41885439 198.51.100.7 54323 typ relay raddr 93.184.216.34 rport 44323 generation 0\r\n"
+			+ "a=ice-ufrag:jV9S4u0+T2BUaYzi\r\n"
+			+ "a=ice-pwd:oM0T0yGLRD2RHfbzvvBzQ8XW\r\n"
+			+ "a=ice-options:google-ice\r\n"
+			+ "a=fingerprint:sha-256 4E:2F:D1:3B:8C:58:AD:1E:DC:41:59:C8:E4:9D:91:D6:46:5B:0A:C1:74:4C:E9:16:0D:2F:B3:15:B6:A3:0A:9D\r\n"
+			+ "a=setup:actpass\r\n"
+			+ "a=mid:video2\r\n"
+			+ "a=extmap:2 urn:ietf:params:rtp-hdrext:toffset\r\n"
+			+ "a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+			+ "a=sendrecv\r\n"
+			+ "a=rtcp-mux\r\n"
+			+ "a=crypto:1 AES_CM_128_HMAC_SHA1_80 inline:F8XMCuBvKnC6xzcUM+SDJ9FvwCaY9YTpg8mzZp4L\r\n"
+			+ "a=rtpmap:100 VP8/90000\r\n"
+			+ "a=rtcp-fb:100 ccm fir\r\n"
+			+ "a=rtcp-fb:100 nack\r\n"
+			+ "a=rtcp-fb:100 goog-remb\r\n"
+			+ "a=rtpmap:116 red/90000\r\n"
+			+ "a=rtpmap:117 ulpfec/90000\r\n"
+			+ "a=ssrc-group:FID 1204877291 3380211955\r\n"
+			+ "a=ssrc:1204877291 cname:0sRz9b5SlqfTqfV3\r\n"
+			+ "a=ssrc:1204877291 msid:ARDAMS1 ARDAMS1v0\r\n"
+			+ "a=ssrc:1204877291 mslabel:ARDAMS1\r\n"
+			+ "a=ssrc:1204877291 label:ARDAMS1v0\r\n"
+			+ "a=ssrc:3380211955 cname:0sRz9b5SlqfTqfV3\r\n"
+			+ "a=ssrc:3380211955 msid:ARDAMS1 ARDAMS1v0\r\n"
+			+ "a=ssrc:3380211955 mslabel:ARDAMS1\r\n"
+			+ "a=ssrc:3380211955 label:ARDAMS1v0\r\n"
+			+ "m=video 44323 RTP/SAVPF 100 116 117\r\n"
+			+ "c=IN IP4 93.184.216.34\r\n"
+			+ "a=rtcp:44324 IN IP4 93.184.216.34\r\n"
+			+ "a=candidate:4234997325 1 udp 2122260223 192.168.0.56 44323 typ host generation 0\r\n"
+			+ "a=candidate:4234997325 2 udp 2122260222 192.168.0.56 44324 typ host generation 0\r\n"
+			+ "a=candidate:3199528107 1 udp 2122129151 fe80::1 44325 typ host generation 0\r\n"
+			+ "a=candidate:1467250027 1 udp 1686052607 93.184.216.34 44323 typ srflx raddr 192.168.0.56 rport 44323 generation 0\r\n"
+			+ "a=candidate:1467250027 2 udp 1686052606 93.184.216.34 44324 typ srflx raddr 192.168.0.56 rport 44324 generation 0\r\n"
+			+ "a=candidate:2157334355 1 tcp 1518280447 192.168.0.56 0 typ host generation 0\r\n"
+			+ "a=candidate:1033213811 1 udp 41885439 198.51.100.7 54323 typ relay raddr 93.184.216.34 rport 44323 generation 0\r\n"
+			+ "a=ice-ufrag:jV9S4u0+T2BUaYzi\r\n"
+			+ "a=ice-pwd:oM0T0yGLRD2RHfbzvvBzQ8XW\r\n"
+			+ "a=ice-options:google-ice\r\n"
+			+ "a=fingerprint:sha-256 4E:2F:D1:3B:8C:58:AD:1E:DC:41:59:C8:E4:9D:91:D6:46:5B:0A:C1:74:4C:E9:16:0D:2F:B3:15:B6:A3:0A:9D\r\n"
+			+ "a=setup:actpass\r\n"
+			+ "a=mid:video3\r\n"
+			+ "a=extmap:2 urn:ietf:params:rtp-hdrext:toffset\r\n"
+			+ "a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+			+ "a=sendrecv\r\n"
+			+ "a=rtcp-mux\r\n"
+			+ "a=crypto:1 AES_CM_128_HMAC_SHA1_80 inline:F8XMCuBvKnC6xzcUM+SDJ9FvwCaY9YTpg8mzZp4L\r\n"
+			+ "a=rtpmap:100 VP8/90000\r\n"
+			+ "a=rtcp-fb:100 ccm fir\r\n"
+			+ "a=rtcp-fb:100 nack\r\n"
+			+ "a=rtcp-fb:100 goog-remb\r\n"
+			+ "a=rtpmap:116 red/90000\r\n"
+			+ "a=rtpmap:117 ulpfec/90000\r\n"
+			+ "a=ssrc-group:FID 2817340623 412906377\r\n"
+			+ "a=ssrc:2817340623 cname:0sRz9b5SlqfTqfV3\r\n"
+			+ "a=ssrc:2817340623 msid:ARDAMS1 ARDAMS1v1\r\n"
+			+ "a=ssrc:2817340623 mslabel:ARDAMS1\r\n"
+			+ "a=ssrc:2817340623 label:ARDAMS1v1\r\n"
+			+ "a=ssrc:412906377 cname:0sRz9b5SlqfTqfV3\r\n"
+			+ "a=ssrc:412906377 msid:ARDAMS1 ARDAMS1v1\r\n"
+			+ "a=ssrc:412906377 mslabel:ARDAMS1\r\n"
+			+ "a=ssrc:412906377 label:ARDAMS1v1\r\n"
+			+ "m=application 44323 DTLS/SCTP 5000\r\n"
+			+ "c=IN IP4 93.184.216.34\r\n"
+			+ "a=rtcp:44324 IN IP4 93.184.216.34\r\n"
+			+ "a=candidate:4234997325 1 udp 2122260223 192.168.0.56 44323 typ host generation 0\r\n"
+			+ "a=candidate:4234997325 2 udp 2122260222 192.168.0.56 44324 typ host generation 0\r\n"
+			+ "a=candidate:3199528107 1 udp 2122129151 fe80::1 44325 typ host generation 0\r\n"
+			+ "a=candidate:1467250027 1 udp 1686052607 93.184.216.34 44323 typ srflx raddr 192.168.0.56 rport 44323 generation 0\r\n"
+			+ "a=candidate:1467250027 2 udp 1686052606 93.184.216.34 44324 typ srflx raddr 192.168.0.56 rport 44324 generation 0\r\n"
+			+ "a=candidate:2157334355 1 tcp 1518280447 192.168.0.56 0 typ host generation 0\r\n"
+			+ "a=candidate:1033213811 1 udp 41885439 198.51.100.7 54323 typ relay raddr 93.184.216.34 rport 44323 generation 0\r\n"
+			+ "a=ice-ufrag:jV9S4u0+T2BUaYzi\r\n"
+			+ "a=ice-pwd:oM0T0yGLRD2RHfbzvvBzQ8XW\r\n"
+			+ "a=ice-options:google-ice\r\n"
+			+ "a=fingerprint:sha-256 4E:2F:D1:3B:8C:58:AD:1E:DC:41:59:C8:E4:9D:91:D6:46:5B:0A:C1:74:4C:E9:16:0D:2F:B3:15:B6:A3:0A:9D\r\n"
+			+ "a=setup:actpass\r\n"
+			+ "a=mid:data\r\n"
+			+ "a=sctpmap:5000 webrtc-datachannel 1024\r\n";
+
+	// Host, server-reflexive (with related address), TCP and IPv6 candidates,
+	// and two that don't fit the packed form.
+	static final String[] CANDIDATES = {
+			"candidate:4234997325 1 udp 2043278322 192.168.0.56 44323 typ host generation 0",
+			"candidate:4234997325 2 udp 2043278322 192.168.0.56 44324 typ host generation 0",
+			"candidate:1467250027 1 udp 1677729535 93.184.216.34 44323 typ srflx raddr 192.168.0.56 rport 44323 generation 0",
+			"candidate:2157334355 1 tcp 1518280447 192.168.0.56 0 typ host generation 0",
+			"candidate:3199528107 1 udp 2122260223 fe80::1 51234 typ host generation 0",
+			"candidate:1 1 udp 2 1.2.3.4 5 typ host generation 0 network-name wlan0" };
+	static final String[] CANDIDATE_MIDS = { "audio", "audio", "audio",
+			"video", "video", "data" };
+	static final int[] CANDIDATE_LABELS = { 0, 0, 0, 1, 1, 2 };
+}
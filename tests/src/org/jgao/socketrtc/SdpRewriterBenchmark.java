@@ -0,0 +1,171 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Times SdpRewriter preferring ISAC/16000 against the split-and-regex
+ * preferISAC() it replaced, on Samples.OFFER and on the multi-stream
+ * Samples.LARGE_OFFER, after checking that both put the same codecs on the
+ * first m=audio line, that SdpRewriter reorders every other m=audio line
+ * too, and that dropping every video codec rejects each video stream. A
+ * plain JVM main, not part of the app; from the project root:
+ * 
+ * javac -d /tmp/bench src/org/jgao/socketrtc/SdpRewriter.java
+ * tests/src/org/jgao/socketrtc/Samples.java
+ * tests/src/org/jgao/socketrtc/SdpRewriterBenchmark.java
+ * 
+ * java -cp /tmp/bench org.jgao.socketrtc.SdpRewriterBenchmark
+ */
+public class SdpRewriterBenchmark {
+	private static final int ITERATIONS = 100000;
+	private static final int ROUNDS = 5;
+
+	// Session.preferISAC() as it was before SdpRewriter, less its logging.
+	static String legacyPreferISAC(String sdpDescription) {
+		String[] lines = sdpDescription.split("\n");
+		int mLineIndex = -1;
+		String isac16kRtpMap = null;
+		Pattern isac16kPattern = Pattern
+				.compile("^a=rtpmap:(\\d+) ISAC/16000[\r]?$");
+		for (int i = 0; (i < lines.length)
+				&& (mLineIndex == -1 || isac16kRtpMap == null); ++i) {
+			if (lines[i].startsWith("m=audio ")) {
+				mLineIndex = i;
+				continue;
+			}
+			Matcher isac16kMatcher = isac16kPattern.matcher(lines[i]);
+			if (isac16kMatcher.matches()) {
+				isac16kRtpMap = isac16kMatcher.group(1);
+				continue;
+			}
+		}
+		if (mLineIndex == -1 || isac16kRtpMap == null) {
+			return sdpDescription;
+		}
+		String[] origMLineParts = lines[mLineIndex].split(" ");
+		StringBuilder newMLine = new StringBuilder();
+		int origPartIndex = 0;
+		// Format is: m=<media> <port> <proto> <fmt> ...
+		newMLine.append(origMLineParts[origPartIndex++]).append(" ");
+		newMLine.append(origMLineParts[origPartIndex++]).append(" ");
+		newMLine.append(origMLineParts[origPartIndex++]).append(" ");
+		newMLine.append(isac16kRtpMap).append(" ");
+		for (; origPartIndex < origMLineParts.length; ++origPartIndex) {
+			if (!origMLineParts[origPartIndex].equals(isac16kRtpMap)) {
+				newMLine.append(origMLineParts[origPartIndex]).append(" ");
+			}
+		}
+		lines[mLineIndex] = newMLine.toString();
+		StringBuilder newSdpDescription = new StringBuilder();
+		for (String line : lines) {
+			newSdpDescription.append(line).append("\n");
+		}
+		return newSdpDescription.toString();
+	}
+
+	// The m=<media> lines of |sdp|, without terminators or trailing spaces.
+	private static List<String> mLines(String sdp, String media) {
+		List<String> mLines = new ArrayList<String>();
+		for (String line : sdp.split("\n")) {
+			if (line.startsWith("m=" + media + " ")) {
+				mLines.add(line.trim());
+			}
+		}
+		return mLines;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	public static void main(String[] args) {
+		SdpRewriter rewriter = new SdpRewriter().preferCodec("audio",
+				"ISAC/16000");
+		check(Samples.OFFER, rewriter);
+		check(Samples.LARGE_OFFER, rewriter);
+
+		System.out.println(ITERATIONS + " rewrites per round");
+		for (int round = 0; round < ROUNDS; ++round) {
+			bench(round, Samples.OFFER, rewriter);
+			bench(round, Samples.LARGE_OFFER, rewriter);
+		}
+	}
+
+	private static void check(String sdp, SdpRewriter rewriter) {
+		String legacy = legacyPreferISAC(sdp);
+		List<String> rewritten = mLines(rewriter.rewrite(sdp), "audio");
+		String legacyFirst = mLines(legacy, "audio").get(0);
+		check(rewritten.get(0).equals(legacyFirst), "m=audio differs: "
+				+ rewritten.get(0) + " vs " + legacyFirst);
+		// preferISAC() only ever touched the first m=audio line; SdpRewriter
+		// does them all.
+		for (String mLine : rewritten) {
+			check(mLine.matches("m=audio \\d+ RTP/SAVPF 103 111 .*"), mLine);
+		}
+
+		String noVideo = new SdpRewriter().dropCodec("video", "VP8")
+				.dropCodec("video", "red").dropCodec("video", "ulpfec")
+				.rewrite(sdp);
+		for (String mLine : mLines(noVideo, "video")) {
+			check(mLine.equals("m=video 0 RTP/SAVPF 100 116 117"), mLine);
+		}
+	}
+
+	private static void bench(int round, final String sdp,
+			final SdpRewriter rewriter) {
+		double legacyUs = time(new Runnable() {
+			public void run() {
+				legacyPreferISAC(sdp);
+			}
+		});
+		double rewriterUs = time(new Runnable() {
+			public void run() {
+				rewriter.rewrite(sdp);
+			}
+		});
+		System.out.printf("round %d, SDP of %d chars: preferISAC %.2fus, "
+				+ "SdpRewriter %.2fus (%.1fx)%n", round, sdp.length(),
+				legacyUs, rewriterUs, legacyUs / rewriterUs);
+	}
+
+	// Return the mean microseconds per run of |r|.
+	private static double time(Runnable r) {
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; ++i) {
+			r.run();
+		}
+		return (System.nanoTime() - start) / 1000.0 / ITERATIONS;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compares BinarySignalingCodec with the plain JSON it replaces, on the
+ * messages Peer sends for Samples.OFFER and Samples.CANDIDATES: bytes on the
+ * wire, and time to encode a message to its wire form and decode it back,
+ * after checking each one survives the round trip. A plain JVM main, not part
+ * of the app. Android's org.json is only stubs off the device, so it needs an
+ * org.json jar (JSON-java's, say) on the classpath; from the project root:
+ * 
+ * javac -d /tmp/bench -cp json.jar src/org/jgao/socketrtc/SignalingCodec.java
+ * src/org/jgao/socketrtc/BinarySignalingCodec.java
+ * tests/src/org/jgao/socketrtc/Samples.java
+ * tests/src/org/jgao/socketrtc/SignalingCodecBenchmark.java
+ * 
+ * java -cp /tmp/bench:json.jar org.jgao.socketrtc.SignalingCodecBenchmark
+ */
+public class SignalingCodecBenchmark {
+	private static final int ITERATIONS = 20000;
+	private static final int ROUNDS = 3;
+
+	private static final SignalingCodec CODEC = new BinarySignalingCodec();
+	// SignalingDispatcher's, which would drag in socket.io.
+	private static final String CODEC_FIELD = "codec";
+	private static final String PAYLOAD_FIELD = "payload";
+
+	// Turns a message into what goes on the wire, and back.
+	private interface Wire {
+		String encode(JSONObject data) throws JSONException;
+
+		JSONObject decode(String wire) throws JSONException;
+	}
+
+	private static final Wire JSON = new Wire() {
+		public String encode(JSONObject data) {
+			return data.toString();
+		}
+
+		public JSONObject decode(String wire) throws JSONException {
+			return new JSONObject(wire);
+		}
+	};
+
+	// As Session sends it: the payload in an envelope, less routing fields.
+	private static final Wire ENCODED = new Wire() {
+		public String encode(JSONObject data) throws JSONException {
+			return new JSONObject().put(CODEC_FIELD, CODEC.getName())
+					.put(PAYLOAD_FIELD, CODEC.encode(data)).toString();
+		}
+
+		public JSONObject decode(String wire) throws JSONException {
+			return CODEC.decode(new JSONObject(wire).getString(PAYLOAD_FIELD));
+		}
+	};
+
+	// As Peer.candidateToJSON() builds it.
+	private static JSONObject candidate(int i) throws JSONException {
+		return new JSONObject().put("label", Samples.CANDIDATE_LABELS[i])
+				.put("id", Samples.CANDIDATE_MIDS[i])
+				.put("candidate", Samples.CANDIDATES[i]);
+	}
+
+	private static Map<String, JSONObject> messages() throws JSONException {
+		Map<String, JSONObject> messages = new LinkedHashMap<String, JSONObject>();
+		messages.put("offer", new JSONObject().put("type", "offer")
+				.put("sdp", Samples.OFFER));
+		messages.put("candidate", candidate(0).put("type", "candidate"));
+		JSONArray batch = new JSONArray();
+		for (int i = 0; i < Samples.CANDIDATES.length; ++i) {
+			batch.put(candidate(i));
+		}
+		messages.put("candidates", new JSONObject().put("type", "candidates")
+				.put("candidates", batch));
+		return messages;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	// Check that |actual| carries everything Peer and Session read from
+	// |expected|.
+	private static void checkSame(String name, JSONObject expected,
+			JSONObject actual) throws JSONException {
+		String type = expected.getString("type");
+		check(type.equals(actual.getString("type")), name + ": type");
+		if (expected.has("sdp")) {
+			check(expected.getString("sdp").equals(actual.getString("sdp")),
+					name + ": sdp");
+		}
+		if (expected.has("candidate")) {
+			checkSameCandidate(name, expected, actual);
+		}
+		if (expected.has("candidates")) {
+			JSONArray want = expected.getJSONArray("candidates");
+			JSONArray got = actual.getJSONArray("candidates");
+			check(want.length() == got.length(), name + ": batch size");
+			for (int i = 0; i < want.length(); ++i) {
+				checkSameCandidate(name + "[" + i + "]",
+						want.getJSONObject(i), got.getJSONObject(i));
+			}
+		}
+	}
+
+	private static void checkSameCandidate(String name, JSONObject expected,
+			JSONObject actual) throws JSONException {
+		check(expected.getInt("label") == actual.getInt("label"), name
+				+ ": label");
+		check(expected.getString("id").equals(actual.getString("id")), name
+				+ ": id");
+		check(expected.getString("candidate").equals(
+				actual.getString("candidate")), name + ": candidate "
+				+ actual.getString("candidate"));
+	}
+
+	public static void main(String[] args) throws JSONException {
+		Map<String, JSONObject> messages = messages();
+		for (Map.Entry<String, JSONObject> message : messages.entrySet()) {
+			String name = message.getKey();
+			JSONObject data = message.getValue();
+			String json = JSON.encode(data);
+			String encoded = ENCODED.encode(data);
+			checkSame(name + " (json)", data, JSON.decode(json));
+			checkSame(name + " (" + CODEC.getName() + ")", data,
+					ENCODED.decode(encoded));
+			System.out.printf("%s: json %d bytes, %s %d bytes (%.0f%%)%n",
+					name, json.length(), CODEC.getName(), encoded.length(),
+					100.0 * encoded.length() / json.length());
+		}
+
+		System.out.println(ITERATIONS + " of each message per round");
+		for (int round = 0; round < ROUNDS; ++round) {
+			for (Map.Entry<String, JSONObject> message : messages.entrySet()) {
+				String name = message.getKey();
+				JSONObject data = message.getValue();
+				double[] json = time(JSON, data);
+				double[] encoded = time(ENCODED, data);
+				System.out.printf("round %d %s: json %.2f/%.2fus, "
+						+ "%s %.2f/%.2fus (encode/decode)%n", round, name,
+						json[0], json[1], CODEC.getName(), encoded[0],
+						encoded[1]);
+			}
+		}
+	}
+
+	// Return the mean microseconds to encode |data| with |wire|, and to
+	// decode it.
+	private static double[] time(Wire wire, JSONObject data)
+			throws JSONException {
+		String encoded = null;
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; ++i) {
+			encoded = wire.encode(data);
+		}
+		long encodeNs = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; ++i) {
+			wire.decode(encoded);
+		}
+		long decodeNs = System.nanoTime() - start;
+		return new double[] { encodeNs / 1000.0 / ITERATIONS,
+				decodeNs / 1000.0 / ITERATIONS };
+	}
+}
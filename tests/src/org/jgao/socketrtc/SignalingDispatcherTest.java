@@ -0,0 +1,287 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.koushikdutta.async.http.socketio.Acknowledge;
+
+/**
+ * Drives SignalingDispatcher with an Executor that runs commands inline and a
+ * fake Listener that records what it's told, and checks: routing by "to" and
+ * "from", including dropping our own echoes; messages without a sender going
+ * to DEFAULT_PEER_ID; a peer's session id standing in for its client id
+ * across a reconnect; each message type reaching its Listener method; and
+ * codecs settled from a "codecs" advertisement or an encoded message. A plain
+ * JVM main, not part of the app. Android's org.json is only stubs off the
+ * device, so it needs an org.json jar (JSON-java's, say) on the classpath;
+ * from the project root:
+ * 
+ * javac -d /tmp/dispatch -cp json.jar:libs/androidasync-1.2.4.jar
+ * src/org/jgao/socketrtc/SignalingCodec.java
+ * src/org/jgao/socketrtc/SignalingDispatcher.java
+ * tests/src/org/jgao/socketrtc/SignalingDispatcherTest.java
+ * 
+ * java -cp /tmp/dispatch:json.jar:libs/androidasync-1.2.4.jar
+ * org.jgao.socketrtc.SignalingDispatcherTest
+ */
+public class SignalingDispatcherTest {
+	// Our client id on the signaling server.
+	private static final String ME = "me";
+
+	private static final Executor INLINE = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	// Sends JSON as is, so it's the name that tells codecs apart.
+	private static class NamedCodec implements SignalingCodec {
+		private final String name;
+
+		NamedCodec(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String encode(JSONObject data) {
+			return data.toString();
+		}
+
+		public JSONObject decode(String payload) throws JSONException {
+			return new JSONObject(payload);
+		}
+	}
+
+	private static final SignalingCodec FAST = new NamedCodec("fast");
+	private static final SignalingCodec SLOW = new NamedCodec("slow");
+
+	// Records each call as "<method> <from>", or "bad <reason>".
+	private static class RecordingListener implements
+			SignalingDispatcher.Listener {
+		final List<String> events = new ArrayList<String>();
+
+		public void onHello(String from, JSONObject data, Acknowledge ack) {
+			events.add("hello " + from);
+		}
+
+		public void onOffer(String from, JSONObject data, Acknowledge ack) {
+			events.add("offer " + from);
+		}
+
+		public void onAnswer(String from, JSONObject data, Acknowledge ack) {
+			events.add("answer " + from);
+		}
+
+		public void onCandidates(String from, JSONObject data,
+				Acknowledge ack) {
+			events.add("candidates " + from);
+		}
+
+		public void onRenegotiate(String from) {
+			events.add("renegotiate " + from);
+		}
+
+		public void onBye(String from) {
+			events.add("bye " + from);
+		}
+
+		public void onBadMessage(JSONArray message, String reason) {
+			events.add("bad " + reason);
+		}
+	}
+
+	private static RecordingListener listener;
+	private static SignalingDispatcher dispatcher;
+
+	// A new dispatcher, already told by the server that it's ME.
+	private static void reset() throws JSONException {
+		listener = new RecordingListener();
+		dispatcher = new SignalingDispatcher(INLINE, listener, FAST, SLOW);
+		receive(message("type", "hello", "clientId", ME));
+		expect("hello " + SignalingDispatcher.DEFAULT_PEER_ID);
+		check(ME.equals(dispatcher.getSelfId()), "self id");
+	}
+
+	// A message with the given alternating field names and values.
+	private static JSONObject message(Object... fields) throws JSONException {
+		JSONObject data = new JSONObject();
+		for (int i = 0; i < fields.length; i += 2) {
+			data.put((String) fields[i], fields[i + 1]);
+		}
+		return data;
+	}
+
+	private static void receive(JSONObject data) {
+		dispatcher.onEvent(new JSONArray().put(data), null);
+	}
+
+	private static void expect(String... events) {
+		if (!listener.events.equals(Arrays.asList(events))) {
+			throw new AssertionError("expected " + Arrays.asList(events)
+					+ ", got " + listener.events);
+		}
+		listener.events.clear();
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	private static void routing() throws JSONException {
+		reset();
+		receive(message("type", "offer", "from", "a", "to", ME));
+		receive(message("type", "offer", "from", "a", "to", "b"));
+		receive(message("type", "offer", "from", "a", "to", "b",
+				"broadcast", true));
+		receive(message("type", "hello", "from", "a"));
+		expect("offer a", "offer a", "hello a");
+
+		// Our own messages, echoed back by client id or by session id.
+		receive(message("type", "hello", "from", ME));
+		receive(message("type", "hello", "from", "old-me", "sid",
+				dispatcher.getSessionId()));
+		expect();
+		System.out.println("routing: ok");
+	}
+
+	private static void defaultPeer() throws JSONException {
+		reset();
+		// A server that only relays between two clients names nobody.
+		receive(message("type", "offer"));
+		receive(message("type", "bye", "to", ME));
+		expect("offer " + SignalingDispatcher.DEFAULT_PEER_ID, "bye "
+				+ SignalingDispatcher.DEFAULT_PEER_ID);
+		check(SignalingDispatcher.DEFAULT_PEER_ID.equals(dispatcher
+				.getRoute(SignalingDispatcher.DEFAULT_PEER_ID)), "route");
+		System.out.println("default peer: ok");
+	}
+
+	private static void sessionAliasing() throws JSONException {
+		reset();
+		receive(message("type", "hello", "from", "a1", "sid", "A"));
+		expect("hello A");
+		check("a1".equals(dispatcher.getRoute("A")), "route before");
+		check("A".equals(dispatcher.getPeerId("a1")), "alias before");
+
+		// It reconnects as a2: same peer, new route, and a1 means nobody.
+		receive(message("type", "hello", "from", "a2", "sid", "A"));
+		expect("hello A");
+		check("a2".equals(dispatcher.getRoute("A")), "route after");
+		check("A".equals(dispatcher.getPeerId("a2")), "alias after");
+		check("a1".equals(dispatcher.getPeerId("a1")), "stale alias");
+
+		// Messages that leave out the sid still find it by client id.
+		receive(message("type", "answer", "from", "a2", "to", ME));
+		receive(message("type", "bye", "from", "a1"));
+		expect("answer A", "bye a1");
+
+		dispatcher.forgetPeer("A");
+		check("A".equals(dispatcher.getRoute("A")), "forgotten route");
+		check("a2".equals(dispatcher.getPeerId("a2")), "forgotten alias");
+		System.out.println("session aliasing: ok");
+	}
+
+	private static void messageTypes() throws JSONException {
+		reset();
+		String[] types = { "hello", "offer", "OFFER", "answer", "candidate",
+				"candidates", "renegotiate", "bye", "dance" };
+		for (String type : types) {
+			receive(message("type", type, "from", "a"));
+		}
+		receive(message("from", "a"));
+		dispatcher.onEvent(new JSONArray().put("hello"), null);
+		expect("hello a", "offer a", "offer a", "answer a", "candidates a",
+				"candidates a", "renegotiate a", "bye a",
+				"bad unknown type dance", "bad no 'type' field",
+				"bad no JSONObject at index 0");
+		System.out.println("message types: ok");
+	}
+
+	private static void codecNegotiation() throws JSONException {
+		reset();
+		check("fast,slow".equals(dispatcher.getCodecNames()), "codec names");
+
+		// The first codec it advertises that we read, not our favourite.
+		receive(message("type", "hello", "from", "a", "codecs",
+				"zip,slow,fast"));
+		check(dispatcher.getCodec("a") == SLOW, "a's codec");
+		// And it sticks.
+		receive(message("type", "offer", "from", "a", "codecs", "fast"));
+		check(dispatcher.getCodec("a") == SLOW, "a's codec again");
+
+		// Nothing advertised, or nothing we read: plain JSON.
+		receive(message("type", "hello", "from", "b"));
+		receive(message("type", "hello", "from", "c", "codecs", "zip"));
+		check(dispatcher.getCodec("b") == null, "b's codec");
+		check(dispatcher.getCodec("c") == null, "c's codec");
+		expect("hello a", "offer a", "hello b", "hello c");
+
+		// An encoded message settles it too, and gets its routing fields back.
+		JSONObject payload = message("type", "answer", "sdp", "v=0");
+		receive(message("codec", "fast", "payload", FAST.encode(payload),
+				"from", "d1", "sid", "D", "to", ME));
+		expect("answer D");
+		check(dispatcher.getCodec("D") == FAST, "D's codec");
+		check("d1".equals(dispatcher.getRoute("D")), "D's route");
+
+		receive(message("codec", "zip", "payload", "?", "from", "e"));
+		receive(message("codec", "fast", "payload", "[]", "from", "e"));
+		check(listener.events.size() == 2
+				&& listener.events.get(0).equals("bad unknown codec zip")
+				&& listener.events.get(1).startsWith(
+						"bad undecodable fast payload"), "bad payloads: "
+				+ listener.events);
+		check(dispatcher.getCodec("e") == null, "e's codec");
+		listener.events.clear();
+
+		dispatcher.forgetPeer("a");
+		check(dispatcher.getCodec("a") == null, "forgotten codec");
+		System.out.println("codec negotiation: ok");
+	}
+
+	public static void main(String[] args) throws JSONException {
+		routing();
+		defaultPeer();
+		sessionAliasing();
+		messageTypes();
+		codecNegotiation();
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * libjingle
+ * Copyright 2013, Google Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jgao.socketrtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Replays stats traces through VideoQualityController and checks when it
+ * steps: sustained congestion steps down after DOWNGRADE_HOLD_MS but a brief
+ * dip doesn't, recovery steps up only after UPGRADE_HOLD_MS with
+ * UPGRADE_HEADROOM to spare, nothing steps within SETTLE_MS of a step, and
+ * one peer short of headroom holds the level for all. A plain JVM main, not
+ * part of the app; from the project root:
+ * 
+ * javac -d /tmp/vqc src/org/jgao/socketrtc/VideoQualityController.java
+ * tests/src/org/jgao/socketrtc/VideoQualityControllerTest.java
+ * 
+ * java -cp /tmp/vqc org.jgao.socketrtc.VideoQualityControllerTest
+ */
+public class VideoQualityControllerTest {
+	// Every trace starts at DEFAULT_LADDER[1], 640x480@30, which needs 500
+	// kbps; stepping up to 1280x720@30 needs 1200 * 1.25 = 1500.
+	private static final int START_LEVEL = 1;
+
+	/*
+	 * Traces as StatsCollector reports them, one sample per row: {time ms,
+	 * peer, available send kbps, send loss %}. Peers are numbered.
+	 */
+	// The uplink falls to 250 kbps and stays there.
+	private static final double[][] SUSTAINED_CONGESTION = trace(0, 1000,
+			16000, 250, 0);
+	// Clear at 800 kbps, but for 2 s of 300 kbps and then 15% loss.
+	private static final double[][] BRIEF_DIP = {
+			{ 0, 0, 800, 0 }, { 1000, 0, 800, 0 }, { 2000, 0, 300, 0 },
+			{ 3000, 0, 300, 0 }, { 4000, 0, 800, 0 }, { 5000, 0, 800, 15 },
+			{ 6000, 0, 800, 15 }, { 7000, 0, 800, 0 }, { 8000, 0, 800, 0 },
+			{ 9000, 0, 800, 0 }, { 10000, 0, 800, 0 } };
+	// Recovered to 1600 kbps, over 1500, without loss.
+	private static final double[][] RECOVERY = trace(0, 1000, 20000, 1600,
+			0);
+	// Recovered to 1400 kbps: enough for 1280x720, but without headroom.
+	private static final double[][] RECOVERY_WITHOUT_HEADROOM = trace(0, 1000,
+			30000, 1400, 0);
+	// Recovered to 1600 kbps, but with 3% loss.
+	private static final double[][] RECOVERY_WITH_LOSS = trace(0, 1000,
+			30000, 1600, 3);
+	// Three peers at 1600 kbps and one at 700.
+	private static final double[][] ONE_PEER_SHORT = merge(
+			trace(0, 0, 1000, 30000, 1600, 0),
+			trace(1, 0, 1000, 30000, 1600, 0),
+			trace(2, 0, 1000, 30000, 1600, 0),
+			trace(3, 0, 1000, 30000, 700, 0));
+	// As above, but the fourth peer falls to 250 kbps.
+	private static final double[][] ONE_PEER_CONGESTED = merge(
+			trace(0, 0, 1000, 10000, 1600, 0),
+			trace(1, 0, 1000, 10000, 1600, 0),
+			trace(2, 0, 1000, 10000, 1600, 0),
+			trace(3, 0, 1000, 10000, 250, 0));
+
+	// |peer|'s samples every |periodMs| from |startMs| to |endMs| inclusive,
+	// all alike.
+	private static double[][] trace(int peer, long startMs, long periodMs,
+			long endMs, double kbps, double loss) {
+		List<double[]> rows = new ArrayList<double[]>();
+		for (long t = startMs; t <= endMs; t += periodMs) {
+			rows.add(new double[] { t, peer, kbps, loss });
+		}
+		return rows.toArray(new double[rows.size()][]);
+	}
+
+	private static double[][] trace(long startMs, long periodMs, long endMs,
+			double kbps, double loss) {
+		return trace(0, startMs, periodMs, endMs, kbps, loss);
+	}
+
+	// |traces| interleaved in time order, peer by peer within each instant.
+	private static double[][] merge(double[][]... traces) {
+		List<double[]> rows = new ArrayList<double[]>();
+		for (double[][] trace : traces) {
+			rows.addAll(Arrays.asList(trace));
+		}
+		double[][] merged = rows.toArray(new double[rows.size()][]);
+		Arrays.sort(merged, new Comparator<double[]>() {
+			public int compare(double[] a, double[] b) {
+				return a[0] != b[0] ? Double.compare(a[0], b[0]) : Double
+						.compare(a[1], b[1]);
+			}
+		});
+		return merged;
+	}
+
+	// Replay |trace| from START_LEVEL; return each step as "time:level".
+	private static List<String> replay(double[][] trace) {
+		VideoQualityController controller = new VideoQualityController(
+				VideoQualityController.DEFAULT_LADDER, START_LEVEL);
+		List<String> steps = new ArrayList<String>();
+		for (double[] row : trace) {
+			if (controller.onStats("peer" + (int) row[1], (long) row[0],
+					(float) row[2], (float) row[3]) != null) {
+				steps.add((long) row[0] + ":" + controller.getLevelIndex());
+			}
+		}
+		return steps;
+	}
+
+	private static void expect(String name, double[][] trace,
+			String... steps) {
+		List<String> actual = replay(trace);
+		if (!actual.equals(Arrays.asList(steps))) {
+			throw new AssertionError(name + ": expected steps "
+					+ Arrays.asList(steps) + ", got " + actual);
+		}
+		System.out.println(name + ": ok " + actual);
+	}
+
+	public static void main(String[] args) {
+		// Down a level after 3 s. That one needs 300 too, but the samples in
+		// SETTLE_MS after the step don't count, so the next step down, to
+		// 320x240, which 250 kbps sustains, is 4 + 3 s later.
+		expect("sustained congestion", SUSTAINED_CONGESTION, "3000:2",
+				"10000:3");
+		expect("brief dip", BRIEF_DIP);
+		// Up after 10 s, then no more: there's no level above.
+		expect("recovery", RECOVERY, "10000:0");
+		expect("recovery without headroom", RECOVERY_WITHOUT_HEADROOM);
+		expect("recovery with loss", RECOVERY_WITH_LOSS);
+		expect("one peer short of headroom", ONE_PEER_SHORT);
+		// The clear peers don't hold back the congested one.
+		expect("one peer congested", ONE_PEER_CONGESTED, "3000:2",
+				"10000:3");
+	}
+}